@@ -0,0 +1,150 @@
+package net.wigle.wigleandroid;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * decides how big the db writer's transactions are and how long it waits to fill them. it keeps
+ * running averages of per-row transaction cost and observation arrival rate, and lingers for more
+ * observations only as long as the oldest queued one can still make it to disk within the latency target.
+ *
+ * the writer thread calls getDrainSize/getLingerMillis/committed, anyone can call arrived and the setters.
+ */
+public final class CommitScheduler {
+  public enum Mode {
+    /** screen is on, people are watching the counts: commit as soon as there's anything */
+    LOW_LATENCY,
+    /** on battery in the background: modest batching */
+    BALANCED,
+    /** plugged in: batch as much as the latency target allows */
+    THROUGHPUT
+  }
+
+  public static final long DEFAULT_TARGET_LATENCY = 2000L;
+
+  private static final int MIN_DRAIN = 16;
+  private static final long MAX_RETRY_DELAY = 1000L;
+  // weight of the newest sample in the running averages
+  private static final double ALPHA = 0.2d;
+
+  private final int maxDrain;
+  private final AtomicLong arrivals = new AtomicLong();
+
+  private volatile long targetLatency = DEFAULT_TARGET_LATENCY;
+  // the app starts out in front of someone
+  private volatile boolean screenOn = true;
+  private volatile boolean pluggedIn = false;
+
+  // only touched by the writer thread
+  private double rowMillis = 1d;
+  private double arrivalsPerMilli = 0d;
+  private long lastArrivals = 0L;
+  private long lastSampleTime = System.currentTimeMillis();
+
+  public CommitScheduler( final int maxDrain ) {
+    this.maxDrain = maxDrain;
+  }
+
+  public Mode getMode() {
+    if ( screenOn ) {
+      return Mode.LOW_LATENCY;
+    }
+    if ( pluggedIn ) {
+      return Mode.THROUGHPUT;
+    }
+    return Mode.BALANCED;
+  }
+
+  public void setScreenOn( final boolean screenOn ) {
+    this.screenOn = screenOn;
+  }
+
+  public void setPluggedIn( final boolean pluggedIn ) {
+    this.pluggedIn = pluggedIn;
+  }
+
+  /**
+   * @param targetLatency most milliseconds an observation should wait between scan and disk
+   */
+  public void setTargetLatency( final long targetLatency ) {
+    this.targetLatency = Math.max( 100L, targetLatency );
+  }
+
+  public long getTargetLatency() {
+    return targetLatency;
+  }
+
+  /** an observation was queued */
+  public void arrived() {
+    arrivals.incrementAndGet();
+  }
+
+  /**
+   * @return the most rows to put in the next transaction: as many as can be written in half the target
+   */
+  public int getDrainSize() {
+    final int affordable = (int) ( ( targetLatency / 2 ) / rowMillis );
+    return Math.max( MIN_DRAIN, Math.min( maxDrain, affordable ) );
+  }
+
+  /**
+   * @param queued how many observations are ready to write
+   * @param oldestAge how long ago the oldest of them was queued, in ms
+   * @return how long to wait for more observations before starting the transaction
+   */
+  public long getLingerMillis( final int queued, final long oldestAge ) {
+    final Mode mode = getMode();
+    final int drainSize = getDrainSize();
+    if ( mode == Mode.LOW_LATENCY || queued >= drainSize ) {
+      return 0L;
+    }
+    // what's left of the budget once the transaction itself is paid for
+    final long writeMillis = (long) ( rowMillis * drainSize );
+    long linger = targetLatency - oldestAge - writeMillis;
+    linger = Math.min( linger, mode == Mode.THROUGHPUT ? targetLatency / 2 : targetLatency / 4 );
+    // only worth waiting if more are actually expected to show up
+    if ( linger <= 0L || arrivalsPerMilli * linger < 1d ) {
+      return 0L;
+    }
+    // and no longer than it takes to fill the drain
+    final long toFill = (long) ( ( drainSize - queued ) / arrivalsPerMilli );
+    return Math.min( linger, toFill );
+  }
+
+  /**
+   * a transaction finished, update the running averages.
+   * @param rows how many observations it wrote
+   * @param millis how long it took
+   */
+  public void committed( final int rows, final long millis ) {
+    if ( rows > 0 ) {
+      rowMillis = average( rowMillis, Math.max( 0.01d, (double) millis / rows ) );
+    }
+    final long now = System.currentTimeMillis();
+    final long elapsed = now - lastSampleTime;
+    if ( elapsed > 0L ) {
+      final long total = arrivals.get();
+      arrivalsPerMilli = average( arrivalsPerMilli, (double) ( total - lastArrivals ) / elapsed );
+      lastArrivals = total;
+      lastSampleTime = now;
+    }
+  }
+
+  /**
+   * @param attempt how many times this transaction has failed so far, starting at 1
+   * @return how long to back off before trying again
+   */
+  public long getRetryDelay( final int attempt ) {
+    final long delay = 50L << Math.min( attempt, 5 );
+    return Math.min( delay, MAX_RETRY_DELAY );
+  }
+
+  @Override
+  public String toString() {
+    return "CommitScheduler: mode: " + getMode() + " rowMillis: " + rowMillis
+      + " arrivals/s: " + (int) ( arrivalsPerMilli * 1000d ) + " drainSize: " + getDrainSize();
+  }
+
+  private static double average( final double previous, final double sample ) {
+    return ( previous * ( 1d - ALPHA ) ) + ( sample * ALPHA );
+  }
+}
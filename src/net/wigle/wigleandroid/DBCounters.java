@@ -0,0 +1,302 @@
+package net.wigle.wigleandroid;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * running totals for the db (locations, networks by type, wifi networks by crypto), kept in a one row
+ * table and updated in the same transaction as the inserts they count, so startup reads one row
+ * instead of counting millions.
+ *
+ * a verification pass recounts the tables a chunk at a time between drains and fixes the row if it
+ * has drifted. it only runs when there's reason to doubt the row: it was just created, or the db wasn't
+ * closed cleanly last time (killed, crashed, or closed mid-verification). rows committed while it runs are added to the recount if they land in what's already
+ * been scanned: networks by key, locations never, since new _ids are always past the scan.
+ *
+ * everything but the getters is only called on the db thread.
+ */
+public final class DBCounters {
+  public static final String COUNTS_TABLE = "counts";
+
+  public static final int LOCATIONS = 0;
+  private static final int TYPE_BASE = 1;
+  private static final int CRYPTO_BASE = TYPE_BASE + NetworkType.values().length;
+  private static final int CRYPTOS = Network.CRYPTO_WPA + 1;
+  private static final int SLOTS = CRYPTO_BASE + CRYPTOS;
+
+  private static final String[] COLUMNS = new String[SLOTS];
+  static {
+    COLUMNS[LOCATIONS] = "locations";
+    for ( final NetworkType type : NetworkType.values() ) {
+      COLUMNS[typeSlot( type )] = "networks_" + type.getCode();
+    }
+    for ( int crypto = 0; crypto < CRYPTOS; crypto++ ) {
+      COLUMNS[CRYPTO_BASE + crypto] = "crypto_" + crypto;
+    }
+  }
+
+  /** 1 while the db is closed after a clean close(), 0 while open or after a kill */
+  private static final String CLEAN = "clean";
+  private static final int VERIFY_CHUNK = 20000;
+  // Network's crypto rules, as globs. glob is case sensitive like indexOf, "[[]" is a literal [
+  private static final String IS_WPA = "capabilities GLOB '*[[]WPA*'";
+  private static final String IS_WEP = "capabilities GLOB '*[[]WEP*'";
+  private static final String WIFI = "type = '" + NetworkType.WIFI.getCode() + "'";
+
+  private final AtomicLongArray committed = new AtomicLongArray( SLOTS );
+  /** this transaction's changes */
+  private final long[] delta = new long[SLOTS];
+
+  private SQLiteStatement update;
+
+  private boolean verifying = false;
+  private boolean networksVerified = false;
+  private long verifyNetKey = Long.MIN_VALUE;
+  private long verifyLocationId = 0L;
+  private final long[] verified = new long[SLOTS];
+  /** networks in this transaction that landed in the already recounted range */
+  private final long[] verifyDelta = new long[SLOTS];
+  private long verifyStart = 0L;
+
+  public static String createSql() {
+    final StringBuilder sql = new StringBuilder( "create table if not exists " ).append( COUNTS_TABLE )
+      .append( " ( _id integer primary key" );
+    for ( final String column : COLUMNS ) {
+      sql.append( ',' ).append( column ).append( " integer not null default 0" );
+    }
+    sql.append( ',' ).append( CLEAN ).append( " integer not null default 0" );
+    return sql.append( ")" ).toString();
+  }
+
+  /**
+   * read the counts, and start a verification pass unless the last close was clean. a db without a counts
+   * row gets a zero one, which that pass fills in.
+   */
+  public void open( final SQLiteDatabase db ) {
+    final StringBuilder sql = new StringBuilder( "UPDATE " ).append( COUNTS_TABLE ).append( " SET " );
+    for ( int i = 0; i < SLOTS; i++ ) {
+      sql.append( i == 0 ? "" : "," ).append( COLUMNS[i] ).append( " = " ).append( COLUMNS[i] ).append( " + ?" );
+    }
+    update = db.compileStatement( sql.append( " WHERE _id = 1" ).toString() );
+
+    boolean clean = false;
+    final Cursor cursor = db.rawQuery( "SELECT * FROM " + COUNTS_TABLE + " WHERE _id = 1", (String[]) null );
+    if ( cursor.moveToFirst() ) {
+      for ( int i = 0; i < SLOTS; i++ ) {
+        committed.set( i, cursor.getLong( cursor.getColumnIndex( COLUMNS[i] ) ) );
+      }
+      final int cleanColumn = cursor.getColumnIndex( CLEAN );
+      if ( cleanColumn < 0 ) {
+        // a table from before the flag
+        db.execSQL( "ALTER TABLE " + COUNTS_TABLE + " ADD COLUMN " + CLEAN + " integer not null default 0" );
+      }
+      else {
+        clean = cursor.getInt( cleanColumn ) == 1;
+      }
+    }
+    else {
+      ListActivity.info( "no counts yet, they'll be filled in by verification" );
+      db.execSQL( "INSERT INTO " + COUNTS_TABLE + " (_id) VALUES (1)" );
+    }
+    cursor.close();
+    // until close() says otherwise
+    db.execSQL( "UPDATE " + COUNTS_TABLE + " SET " + CLEAN + " = 0 WHERE _id = 1" );
+    ListActivity.info( "counts: " + this + " clean: " + clean );
+    if ( ! clean ) {
+      startVerify();
+    }
+  }
+
+  /**
+   * @param db the open db, to mark the counts as good for the next open
+   * @param writerStopped true if nothing can write after this, otherwise the flag isn't set
+   */
+  public void close( final SQLiteDatabase db, final boolean writerStopped ) {
+    if ( update != null ) {
+      update.close();
+    }
+    if ( writerStopped && ! verifying && db.isOpen() ) {
+      db.execSQL( "UPDATE " + COUNTS_TABLE + " SET " + CLEAN + " = 1 WHERE _id = 1" );
+    }
+  }
+
+  public long getLocationCount() {
+    return committed.get( LOCATIONS );
+  }
+
+  public long getNetworkCount() {
+    long total = 0L;
+    for ( final NetworkType type : NetworkType.values() ) {
+      total += committed.get( typeSlot( type ) );
+    }
+    return total;
+  }
+
+  public long getNetworkCount( final NetworkType type ) {
+    return committed.get( typeSlot( type ) );
+  }
+
+  /**
+   * @param crypto one of Network.CRYPTO_*
+   * @return how many wifi networks
+   */
+  public long getCryptoCount( final int crypto ) {
+    return committed.get( CRYPTO_BASE + crypto );
+  }
+
+  public void networkAdded( final Network network, final long netKey ) {
+    final NetworkType type = network.getType();
+    delta[typeSlot( type )]++;
+    if ( NetworkType.WIFI.equals( type ) ) {
+      delta[CRYPTO_BASE + network.getCrypto()]++;
+    }
+    if ( verifying && ( networksVerified || netKey <= verifyNetKey ) ) {
+      verifyDelta[typeSlot( type )]++;
+      if ( NetworkType.WIFI.equals( type ) ) {
+        verifyDelta[CRYPTO_BASE + network.getCrypto()]++;
+      }
+    }
+  }
+
+  public void locationAdded() {
+    delta[LOCATIONS]++;
+  }
+
+  /**
+   * add this transaction's changes to the counts row, inside the transaction.
+   */
+  public void write() {
+    boolean changed = false;
+    for ( int i = 0; i < SLOTS; i++ ) {
+      update.bindLong( i + 1, delta[i] );
+      changed |= delta[i] != 0L;
+    }
+    if ( changed ) {
+      update.execute();
+    }
+  }
+
+  /** the transaction went through */
+  public void committed() {
+    for ( int i = 0; i < SLOTS; i++ ) {
+      if ( delta[i] != 0L ) {
+        committed.addAndGet( i, delta[i] );
+      }
+      verified[i] += verifyDelta[i];
+    }
+    rolledBack();
+  }
+
+  /** the transaction didn't, forget its changes */
+  public void rolledBack() {
+    for ( int i = 0; i < SLOTS; i++ ) {
+      delta[i] = 0L;
+      verifyDelta[i] = 0L;
+    }
+  }
+
+  public void startVerify() {
+    verifying = true;
+    networksVerified = false;
+    verifyNetKey = Long.MIN_VALUE;
+    verifyLocationId = 0L;
+    verifyStart = System.currentTimeMillis();
+    for ( int i = 0; i < SLOTS; i++ ) {
+      verified[i] = 0L;
+    }
+  }
+
+  public boolean isVerifying() {
+    return verifying;
+  }
+
+  /**
+   * recount the next chunk, between transactions. when it runs out of rows, compares and repairs.
+   * @param db the open db
+   * @param networkTable where the networks are
+   * @param locationTable where the locations are
+   */
+  public void verifyStep( final SQLiteDatabase db, final String networkTable, final String locationTable ) {
+    if ( ! networksVerified ) {
+      final StringBuilder sql = new StringBuilder( "SELECT count(*),max(netkey)" );
+      for ( final NetworkType type : NetworkType.values() ) {
+        sql.append( ",sum(type = '" ).append( type.getCode() ).append( "')" );
+      }
+      sql.append( ",sum(" ).append( WIFI ).append( " AND NOT " ).append( IS_WPA ).append( " AND " ).append( IS_WEP )
+        .append( "),sum(" ).append( WIFI ).append( " AND " ).append( IS_WPA ).append( ")" )
+        .append( " FROM (SELECT netkey,type,capabilities FROM " ).append( networkTable )
+        .append( " WHERE netkey > ? ORDER BY netkey LIMIT " ).append( VERIFY_CHUNK ).append( ")" );
+      final Cursor cursor = db.rawQuery( sql.toString(), new String[]{ Long.toString( verifyNetKey ) } );
+      cursor.moveToFirst();
+      final long count = cursor.getLong(0);
+      if ( count > 0L ) {
+        verifyNetKey = cursor.getLong(1);
+        int column = 2;
+        for ( final NetworkType type : NetworkType.values() ) {
+          verified[typeSlot( type )] += cursor.getLong( column++ );
+        }
+        final long wep = cursor.getLong( column++ );
+        final long wpa = cursor.getLong( column++ );
+        verified[CRYPTO_BASE + Network.CRYPTO_WEP] += wep;
+        verified[CRYPTO_BASE + Network.CRYPTO_WPA] += wpa;
+      }
+      else {
+        networksVerified = true;
+        verified[CRYPTO_BASE + Network.CRYPTO_NONE] = verified[typeSlot( NetworkType.WIFI )]
+          - verified[CRYPTO_BASE + Network.CRYPTO_WEP] - verified[CRYPTO_BASE + Network.CRYPTO_WPA];
+      }
+      cursor.close();
+      return;
+    }
+
+    final Cursor cursor = db.rawQuery( "SELECT count(*),max(_id) FROM (SELECT _id FROM " + locationTable
+        + " WHERE _id > ? ORDER BY _id LIMIT " + VERIFY_CHUNK + ")", new String[]{ Long.toString( verifyLocationId ) } );
+    cursor.moveToFirst();
+    final long count = cursor.getLong(0);
+    if ( count > 0L ) {
+      verifyLocationId = cursor.getLong(1);
+      verified[LOCATIONS] += count;
+    }
+    cursor.close();
+    if ( count == 0L ) {
+      finishVerify( db );
+    }
+  }
+
+  private void finishVerify( final SQLiteDatabase db ) {
+    verifying = false;
+    final StringBuilder drift = new StringBuilder();
+    final StringBuilder sql = new StringBuilder( "UPDATE " ).append( COUNTS_TABLE ).append( " SET " );
+    for ( int i = 0; i < SLOTS; i++ ) {
+      final long current = committed.get( i );
+      if ( current != verified[i] ) {
+        drift.append( ' ' ).append( COLUMNS[i] ).append( ": " ).append( current ).append( " -> " ).append( verified[i] );
+      }
+      sql.append( i == 0 ? "" : "," ).append( COLUMNS[i] ).append( " = " ).append( verified[i] );
+    }
+    if ( drift.length() > 0 ) {
+      ListActivity.info( "counts repaired:" + drift );
+      db.execSQL( sql.append( " WHERE _id = 1" ).toString() );
+      for ( int i = 0; i < SLOTS; i++ ) {
+        committed.set( i, verified[i] );
+      }
+    }
+    ListActivity.info( "counts verified in " + ( System.currentTimeMillis() - verifyStart ) + "ms: " + this );
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder out = new StringBuilder( "DBCounters:" );
+    for ( int i = 0; i < SLOTS; i++ ) {
+      out.append( ' ' ).append( COLUMNS[i] ).append( ": " ).append( committed.get( i ) );
+    }
+    return out.toString();
+  }
+
+  private static int typeSlot( final NetworkType type ) {
+    return TYPE_BASE + type.ordinal();
+  }
+}
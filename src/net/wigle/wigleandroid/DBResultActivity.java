@@ -2,7 +2,6 @@ package net.wigle.wigleandroid;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TreeMap;
 
 import org.osmdroid.api.IGeoPoint;
 import org.osmdroid.api.IMapView;
@@ -12,9 +11,7 @@ import org.osmdroid.views.MapView;
 import android.app.Activity;
 import android.content.Intent;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.location.Address;
-import android.location.Location;
 import android.media.AudioManager;
 import android.os.Bundle;
 import android.os.Handler;
@@ -34,6 +31,9 @@ public class DBResultActivity extends Activity {
   private IMapView mapView;
   private List<Network> resultList = new ArrayList<Network>();
   private ConcurrentLinkedHashMap<LatLon, Integer> obsMap = new ConcurrentLinkedHashMap<LatLon, Integer>();
+  // the ring being searched, replaced as the search moves out
+  private volatile QueryThread.Request request;
+  private volatile boolean destroyed = false;
   
   @Override
   public void onCreate( final Bundle savedInstanceState) {
@@ -66,6 +66,16 @@ public class DBResultActivity extends Activity {
     }
   }
   
+  @Override
+  public void onDestroy() {
+    destroyed = true;
+    if ( request != null ) {
+      // a new search or leaving, either way nobody wants the rest of this one
+      request.cancel();
+    }
+    super.onDestroy();
+  }
+  
   private void setupList() {
     // not set by nonconfig retain
     listAdapter = new NetworkListAdapter( getApplicationContext(), R.layout.row );
@@ -110,94 +120,166 @@ public class DBResultActivity extends Activity {
       }
     };
     
-    String sql = "SELECT bssid,lastlat,lastlon FROM " + DatabaseHelper.NETWORK_TABLE + " WHERE 1=1 ";
+    final QueryCache cache = ListActivity.lameStatic.dbHelper.getQueryCache();
+    final List<Network> cached = cache.getSearch( queryArgs );
+    if ( cached != null ) {
+      ListActivity.info( "search results from cache: " + cached.size() );
+      showResults( cached, handler );
+      return;
+    }
+    final Object token = cache.beginSearch( queryArgs );
+    
+    // the address search's nearest, or the other searches' rows in order. built from the rows as they
+    // come, on the query thread, no going back to the db for each
+    final GeoTopK<Network> top = address == null ? null 
+      : new GeoTopK<Network>( LIMIT, address.getLatitude(), address.getLongitude() );
+    final List<Network> found = new ArrayList<Network>();
+    final Runnable finish = new Runnable() {
+      public void run() {
+        final List<Network> networks = top == null ? found : top.getSorted();
+        // how far out an address search got, anything that moves inside that could change it
+        final double radius = top != null && top.isFull() ? top.getRadius() : -1d;
+        cache.putSearch( queryArgs, token, networks, radius );
+        showResults( networks, handler );
+      }
+    };
+    
+    if ( address != null ) {
+      // walk the cell index outward from the address
+      queryRing( queryArgs, 0, top, finish );
+      return;
+    }
+    
+    // values are bound, not pasted in, so the sql is the same every time
+    final List<Object> args = new ArrayList<Object>();
+    String sql = ssidIndexSql( queryArgs, args );
+    if ( sql == null ) {
+      // no index for this one, scan
+      args.clear();
+      final StringBuilder scan = new StringBuilder( "SELECT " ).append( DatabaseHelper.networkColumns( "" ) )
+        .append( " FROM " ).append( DatabaseHelper.NETWORK_V2_TABLE ).append( " WHERE 1=1" );
+      final boolean limit = appendFilters( queryArgs, scan, args );
+      if ( limit ) {
+        scan.append( " LIMIT " ).append( LIMIT );
+      }
+      sql = scan.toString();
+    }
+    
+    request = new QueryThread.Request( sql, args.toArray(), new QueryThread.ResultHandler() {
+      public void handleRow( final Cursor cursor ) {
+        found.add( DatabaseHelper.networkFromCursor( cursor ) );
+      }
+      
+      public void complete() {
+        finish.run();
+      }
+    });
+    
+    // queue it up
+    ListActivity.lameStatic.dbHelper.addToQueue( request );
+  }
+  
+  private void showResults( final List<Network> networks, final Handler handler ) {
+    for ( final Network network : networks ) {
+      resultList.add( network );
+      final IGeoPoint point = network.getGeoPoint();
+      final LatLon key = new LatLon(point.getLatitudeE6() / 1e6f, point.getLongitudeE6() / 1e6f);
+      obsMap.put(key, 0);
+    }
+    
+    handler.sendEmptyMessage( MSG_QUERY_DONE );
+    if ( mapView != null ) {
+      // force a redraw
+      ((View) mapView).postInvalidate();
+    }
+  }
+  
+  /**
+   * @return the ssid search through the trigram index, or null if there's no ssid, it's too short to 
+   *  index, or the index isn't ready
+   */
+  private static String ssidIndexSql( final QueryArgs queryArgs, final List<Object> args ) {
     final String ssid = queryArgs.getSSID();  
-    final String bssid = queryArgs.getBSSID();  
-    boolean limit = false;
-    if ( ssid != null && ! "".equals(ssid) ) {
-      sql += " AND ssid like " + DatabaseUtils.sqlEscapeString(ssid);
-      limit = true;
+    if ( ssid == null || "".equals(ssid) || ! ListActivity.lameStatic.dbHelper.isSsidIndexReady() ) {
+      return null;
     }
+    final String bssid = queryArgs.getBSSID();  
+    String bssidWhere = "";
+    final List<Object> bssidArgs = new ArrayList<Object>();
     if ( bssid != null && ! "".equals(bssid) ) {
-      sql += " AND bssid like " + DatabaseUtils.sqlEscapeString(bssid);
-      limit = true;
+      bssidWhere = "AND n.bssid like ?";
+      bssidArgs.add( bssid );
     }
-    if ( address != null ) {
-      final double diff = 0.1d;
-      final double lat = address.getLatitude();
-      final double lon = address.getLongitude();
-      sql += " AND lastlat > '" + (lat - diff) + "' AND lastlat < '" + (lat + diff) + "'";
-      sql += " AND lastlon > '" + (lon - diff) + "' AND lastlon < '" + (lon + diff) + "'";
+    return SsidIndex.searchSql( ssid, DatabaseHelper.networkColumns( "n." ), bssidWhere, bssidArgs, LIMIT, args );
+  }
+  
+  /**
+   * @return true if there were any filters
+   */
+  private static boolean appendFilters( final QueryArgs queryArgs, final StringBuilder sql, final List<Object> args ) {
+    final String ssid = queryArgs.getSSID();  
+    final String bssid = queryArgs.getBSSID();  
+    boolean filtered = false;
+    if ( ssid != null && ! "".equals(ssid) ) {
+      sql.append( " AND ssid like ?" );
+      args.add( ssid );
+      filtered = true;
     }
-    if ( limit ) {
-      sql += " LIMIT " + LIMIT;
+    if ( bssid != null && ! "".equals(bssid) ) {
+      sql.append( " AND bssid like ?" );
+      args.add( bssid );
+      filtered = true;
     }
+    return filtered;
+  }
+  
+  /**
+   * the networks in one ring of GeoCells around the address, nearest LIMIT kept in top. goes on to the next
+   * ring until nothing further out could be nearer than what's in top, or it runs out of rings.
+   */
+  private void queryRing( final QueryArgs queryArgs, final int ring, final GeoTopK<Network> top, 
+      final Runnable finish ) {
     
-    final TreeMap<Float,String> top = new TreeMap<Float,String>();
-    final float[] results = new float[1];    
-    final long[] count = new long[1];
+    final Address address = queryArgs.getAddress();
+    final double lat = address.getLatitude();
+    final double lon = address.getLongitude();
+    final long[] cells = new long[Math.max( 1, 8 * ring )];
+    final int cellCount = GeoCells.ringCells( lat, lon, ring, cells );
     
-    final QueryThread.Request request = new QueryThread.Request( sql, new QueryThread.ResultHandler() {
+    final StringBuilder sql = new StringBuilder( "SELECT " ).append( DatabaseHelper.networkColumns( "" ) )
+      .append( " FROM " ).append( DatabaseHelper.NETWORK_V2_TABLE ).append( " WHERE cell IN (" );
+    final List<Object> args = new ArrayList<Object>();
+    for ( int i = 0; i < cellCount; i++ ) {
+      sql.append( i == 0 ? "?" : ",?" );
+      args.add( cells[i] );
+    }
+    sql.append( ")" );
+    appendFilters( queryArgs, sql, args );
+    
+    request = new QueryThread.Request( sql.toString(), args.toArray(), new QueryThread.ResultHandler() {
       public void handleRow( final Cursor cursor ) {
-        final String bssid = cursor.getString(0);
-        final float lat = cursor.getFloat(1);
-        final float lon = cursor.getFloat(2);
-        count[0]++;
-        
-        if ( address == null ) {
-          top.put( (float) count[0], bssid );
-        }
-        else {
-          Location.distanceBetween( lat, lon, address.getLatitude(), address.getLongitude(), results );        
-          final float meters = results[0];
-          
-          if ( top.size() <= LIMIT ) {
-            putWithBackoff( top, bssid, meters );
-          }
-          else {
-            Float last = top.lastKey();
-            if ( meters < last ) {
-              top.remove( last );
-              putWithBackoff( top, bssid, meters );
-            }
-          }
+        // only build the ones that make it in
+        final float meters = top.distanceIfNearer( cursor.getDouble(5), cursor.getDouble(6) );
+        if ( meters >= 0f ) {
+          top.offer( meters, DatabaseHelper.networkFromCursor( cursor ) );
         }
       }
       
-      public void complete() {        
-        for ( final String bssid : top.values() ) {          
-          final Network network = ListActivity.lameStatic.dbHelper.getNetwork( bssid );
-          resultList.add( network );
-          final IGeoPoint point = network.getGeoPoint();
-          final LatLon key = new LatLon(point.getLatitudeE6() / 1e6f, point.getLongitudeE6() / 1e6f);
-          obsMap.put(key, 0);
+      public void complete() {
+        // the radius only shrinks and the rings only grow, so once inside it stays inside
+        final boolean full = top.isFull() && top.getRadius() <= GeoCells.coveredMeters( lat, ring );
+        if ( full || ring >= GeoCells.MAX_RING ) {
+          ListActivity.info( "address search done at ring: " + ring + " " + top );
+          finish.run();
         }
-        
-        handler.sendEmptyMessage( MSG_QUERY_DONE );
-        if ( mapView != null ) {
-          // force a redraw
-          ((View) mapView).postInvalidate();
+        else if ( ! destroyed ) {
+          queryRing( queryArgs, ring + 1, top, finish );
         }
       }
     });
-    
-    // queue it up
     ListActivity.lameStatic.dbHelper.addToQueue( request );
   }    
   
-  private static void putWithBackoff( TreeMap<Float,String> top, String s, float diff ) {
-    String old = top.put( diff, s );
-    // protect against infinite loops
-    int count = 0;
-    while ( old != null && count < 1000 ) {
-      // ut oh, two at the same difference away. add a slight bit and put it back
-      // info( "collision at diff: " + diff + " old: " + old.getCallsign() + " orig: " + s.getCallsign() );
-      diff += 0.0001f;
-      old = top.put( diff, old );
-      count++;
-    }
-  }
-  
   /* Creates the menu items */
   @Override
   public boolean onCreateOptionsMenu( final Menu menu ) {
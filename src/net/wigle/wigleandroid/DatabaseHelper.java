@@ -3,20 +3,21 @@
 
 package net.wigle.wigleandroid;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
-
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -54,78 +55,217 @@ public final class DatabaseHelper extends Thread {
   private static final int DB_PRIORITY = Process.THREAD_PRIORITY_BACKGROUND;
   private static final Object TRANS_LOCK = new Object();
   
-  private static final long QUEUE_CULL_TIMEOUT = 10000L;
-  private long prevQueueCullTime = 0L;
-  private long prevPendingQueueCullTime = 0L;
-  
   private SQLiteStatement insertNetwork;
   private SQLiteStatement insertLocation;
   private SQLiteStatement updateNetwork;
+  private SQLiteStatement insertPending;
   
+  /* 
+   * schema v2: the data lives in network2 and location2, keyed by netkey, which is the mac packed into 
+   * an integer for wifi (see MacLocationIndex.toKey) and a negative surrogate for cell ids. lat/lon are 
+   * 1e7 scaled integers, altitude is decimeters, accuracy whole meters. location2 rows don't repeat the
+   * bssid text, it's once per network in network2. sqlite stores small integers in 1-4 bytes, so this 
+   * is a fraction of the size of the old text bssid and double columns.
+   *
+   * "network" and "location" are views decoding back to the v1 columns, so queries and export against 
+   * them keep working. writes go straight to the v2 tables.
+   *
+   * schema v3 adds network2.cell, the GeoCells grid cell of the last position, indexed for nearby searches.
+   */
   public static final String NETWORK_TABLE = "network";
-  private static final String NETWORK_CREATE =
-    "create table " + NETWORK_TABLE + " ( "
-    + "bssid text primary key not null,"
+  public static final String LOCATION_TABLE = "location";
+  public static final String NETWORK_V2_TABLE = "network2";
+  public static final String LOCATION_V2_TABLE = "location2";
+  // v1 tables are renamed to these while they're migrated
+  private static final String NETWORK_V1_TABLE = "network_v1";
+  private static final String LOCATION_V1_TABLE = "location_v1";
+  
+  private static final String NETWORK_V2_CREATE =
+    "create table " + NETWORK_V2_TABLE + " ( "
+    + "netkey integer primary key not null,"
+    + "bssid text not null,"
     + "ssid text not null,"
     + "frequency int not null,"
     + "capabilities text not null,"
     + "lasttime long not null,"
-    + "lastlat double not null,"
-    + "lastlon double not null,"
-    + "type text not null default '" + NetworkType.WIFI.getCode() + "'"
+    + "lastlat integer not null,"
+    + "lastlon integer not null,"
+    + "type text not null default '" + NetworkType.WIFI.getCode() + "',"
+    + "cell integer"
     + ")";
   
-  public static final String LOCATION_TABLE = "location";
-  private static final String LOCATION_CREATE =
-    "create table " + LOCATION_TABLE + " ( "
+  private static final String NETWORK_CELL_INDEX = 
+    "create index if not exists network2_cell on " + NETWORK_V2_TABLE + " (cell)";
+  
+  // only while v1 locations are left, for joining them to their network by bssid
+  private static final String NETWORK_BSSID_INDEX = 
+    "create index if not exists network2_bssid on " + NETWORK_V2_TABLE + " (bssid)";
+  
+  private static final String LOCATION_NETKEY_INDEX = 
+    "create index if not exists location2_netkey on " + LOCATION_V2_TABLE + " (netkey)";
+  
+  private static final String LOCATION_V2_CREATE =
+    "create table " + LOCATION_V2_TABLE + " ( "
     + "_id integer primary key autoincrement,"
-    + "bssid text not null,"
+    + "netkey integer not null,"
     + "level integer not null,"
-    + "lat double not null,"
-    + "lon double not null,"
-    + "altitude double not null,"
-    + "accuracy float not null,"
+    + "lat integer not null,"
+    + "lon integer not null,"
+    + "altitude integer not null,"
+    + "accuracy integer not null,"
     + "time long not null"
     + ")";
   
+  private static final String NETWORK_VIEW =
+    "create view " + NETWORK_TABLE + " as select "
+    + "bssid,ssid,frequency,capabilities,lasttime,"
+    + "lastlat / 10000000.0 as lastlat,lastlon / 10000000.0 as lastlon,type"
+    + " from " + NETWORK_V2_TABLE;
+  
+  private static final String LOCATION_VIEW =
+    "create view " + LOCATION_TABLE + " as select "
+    + "l._id as _id,n.bssid as bssid,l.level as level,l.lat / 10000000.0 as lat,l.lon / 10000000.0 as lon,"
+    + "l.altitude / 10.0 as altitude,l.accuracy as accuracy,l.time as time"
+    + " from " + LOCATION_V2_TABLE + " l, " + NETWORK_V2_TABLE + " n where n.netkey = l.netkey";
+  
+  // while location_v1 still has rows, the view covers both
+  private static final String LOCATION_MIGRATING_VIEW = LOCATION_VIEW
+    + " union all select _id,bssid,level,lat,lon,altitude,accuracy,time from " + LOCATION_V1_TABLE;
+  
+  // the export's location rows with their network alongside, cross join keeps location2 on the outside
+  private static final String EXPORT_SQL = "SELECT l._id,n.bssid,l.level,l.lat / 10000000.0,l.lon / 10000000.0,"
+    + "l.altitude / 10.0,l.accuracy,l.time,n.ssid,n.capabilities,n.frequency,n.type"
+    + " FROM " + LOCATION_V2_TABLE + " l CROSS JOIN " + NETWORK_V2_TABLE + " n"
+    + " WHERE l._id > ? AND n.netkey = l.netkey";
+  // the same for v1 locations, only while they're migrating, joined by the bssid index that's there for them
+  private static final String EXPORT_V1_SQL = "SELECT l._id,n.bssid,l.level,l.lat,l.lon,l.altitude,l.accuracy,"
+    + "l.time,n.ssid,n.capabilities,n.frequency,n.type"
+    + " FROM " + LOCATION_V1_TABLE + " l CROSS JOIN " + NETWORK_V2_TABLE + " n"
+    + " WHERE l._id > ? AND n.bssid = l.bssid";
+  
+  private static final double E7 = 1e7d;
+  private static final int MIGRATE_BATCH = 2000; // v1 rows moved per transaction
+  
+  /** observations seen without a gps fix, and the fix they were last near, waiting for a fix to come back */
+  public static final String PENDING_TABLE = "pending";
+  private static final String PENDING_CREATE =
+    "create table if not exists " + PENDING_TABLE + " ( "
+    + "_id integer primary key autoincrement,"
+    + "bssid text not null,"
+    + "ssid text not null,"
+    + "frequency int not null,"
+    + "capabilities text not null,"
+    + "type text not null,"
+    + "level integer not null,"
+    + "newforrun integer not null,"
+    + "time long not null,"
+    + "lat0 double not null,"
+    + "lon0 double not null,"
+    + "time0 long not null"
+    + ")";
+  
   private SQLiteDatabase db;
+  private String dbPath;
+  private volatile boolean walEnabled = false;
   
   private static final int MAX_QUEUE = 512;
+  private static final int MAX_NEW_QUEUE = 256; // reserved for networks new for the run
+  private static final int JOURNAL_CAPACITY = 8192; // records, 4MB of file
   private static final int MAX_DRAIN = 512; // seems to work fine slurping the whole darn thing
+  private static final long LINGER_STEP = 20L;
+  private static final int RECOVER_BATCH = 256; // pending rows interpolated per transaction
+  private static final int TRACK_SIZE = 4096; // a bit over an hour of 1hz fixes
+  private static final int LOOKUP_CHUNK = 100; // bssids per "IN (...)", sqlite tops out at 999 args
+  /** drain lookup value for bssids the network table doesn't have yet */
+  private static final double[] NOT_IN_DB = new double[0];
   private static final String ERROR = "error";
   private static final String EXCEPTION = "exception";
   private final Context context;
-  private final ArrayBlockingQueue<DBUpdate> queue = new ArrayBlockingQueue<DBUpdate>( MAX_QUEUE );
-  private final ArrayBlockingQueue<DBPending> pending = new ArrayBlockingQueue<DBPending>( MAX_QUEUE ); // how to size this better?
+  private final ObservationLanes<DBUpdate> queue = new ObservationLanes<DBUpdate>( MAX_NEW_QUEUE, MAX_QUEUE );
+  /** handed to the db thread, which moves them into the pending table */
+  private final ConcurrentLinkedQueue<DBPending> pending = new ConcurrentLinkedQueue<DBPending>();
+  /** fixes that ended a gps outage, the db thread interpolates pending rows up to each one */
+  private final ConcurrentLinkedQueue<DBRecovery> recoveries = new ConcurrentLinkedQueue<DBRecovery>();
   private final AtomicBoolean done = new AtomicBoolean(false);
-  private final AtomicLong networkCount = new AtomicLong();
-  private final AtomicLong locationCount = new AtomicLong();
+  /** network/location/crypto totals, persisted in the counts table */
+  private final DBCounters counters = new DBCounters();
+  private final SsidIndex ssidIndex = new SsidIndex();
+  private final NetworkSummaries summaries = new NetworkSummaries();
+  /** what this transaction wrote to, for the commit listeners */
+  private final TouchedNetworks touched = new TouchedNetworks();
+  private final List<CommitListener> commitListeners = new CopyOnWriteArrayList<CommitListener>();
+  private final QueryCache queryCache = new QueryCache();
   private final AtomicLong newNetworkCount = new AtomicLong();
   private final AtomicLong newWifiCount = new AtomicLong();
   private final AtomicLong newCellCount = new AtomicLong();  
+  private final AtomicLong coalescedCount = new AtomicLong();
   private final QueryThread queryThread;
+  private final CommitScheduler commitScheduler = new CommitScheduler( MAX_DRAIN );
+  /** where observations go when the queue is full, null until the db is opened */
+  private volatile ObservationJournal journal;
+  /** cell id -&gt; surrogate netkey, every cell in network2 */
+  private final ConcurrentHashMap<String,Long> cellKeys = new ConcurrentHashMap<String,Long>();
+  private long nextCellKey = -2L;
+  /** location_v1 still has rows, the db thread moves a batch each pass */
+  private volatile boolean locationsMigrating = false;
 
   private Location lastLoc = null;
   private long lastLocWhen = 0L;
+  private int pendingSinceLoss = 0;
   private final DeathHandler deathHandler;
   private final SharedPreferences prefs;
   
-  /** used in private addObservation */
-  private final ConcurrentLinkedHashMap<String,Location> previousWrittenLocationsCache = 
-    new ConcurrentLinkedHashMap<String,Location>( 64 );
+  /** used in private addObservation, only touched on the db thread */
+  private final MacLocationIndex previousWrittenLocations = new MacLocationIndex( 1 << 18 );
+  private final double[] previousWrittenValues = new double[3];
+  
+  /** recent gps fixes, fed by the gps listener, for placing observations seen without a fix */
+  private final GpsTrack gpsTrack = new GpsTrack( TRACK_SIZE );
+  // batch buffers for recoverPending, only touched on the db thread
+  private final Network[] recoverNetworks = new Network[RECOVER_BATCH];
+  private final int[] recoverLevels = new int[RECOVER_BATCH];
+  private final boolean[] recoverNewForRun = new boolean[RECOVER_BATCH];
+  private final long[] recoverTimes = new long[RECOVER_BATCH];
+  private final double[] recoverLats = new double[RECOVER_BATCH];
+  private final double[] recoverLons = new double[RECOVER_BATCH];
+  private final long[] recoverAnchorTimes = new long[RECOVER_BATCH];
+  private final double[] recoverTrackLats = new double[RECOVER_BATCH];
+  private final double[] recoverTrackLons = new double[RECOVER_BATCH];
+  private final float[] recoverAccuracies = new float[RECOVER_BATCH];
+  private final boolean[] recoverLocated = new boolean[RECOVER_BATCH];
+  private final float[] recoverDistance = new float[1];
   
   /** class for queueing updates to the database */
   final class DBUpdate {
     public final Network network;
     public final int level;
-    public final Location location;
+    // copied out of the location, so recovered observations don't need one
+    public final long time;
+    public final double lat;
+    public final double lon;
+    public final double altitude;
+    public final float accuracy;
     public final boolean newForRun;
+    public final long when; // in MS
+    /** set by coalescing when a later update in the same drain will write the network row anyway */
+    public boolean skipNetworkUpdate = false;
     
     public DBUpdate( final Network network, final int level, final Location location, final boolean newForRun ) {
+      this( network, level, location.getTime(), location.getLatitude(), location.getLongitude(), 
+          location.getAltitude(), location.getAccuracy(), newForRun );
+    }
+    
+    public DBUpdate( final Network network, final int level, final long time, final double lat, final double lon,
+        final double altitude, final float accuracy, final boolean newForRun ) {
       this.network = network;
       this.level = level;
-      this.location = location;
+      this.time = time;
+      this.lat = lat;
+      this.lon = lon;
+      this.altitude = altitude;
+      this.accuracy = accuracy;
       this.newForRun = newForRun;
+      this.when = System.currentTimeMillis();
     }
   }
 
@@ -135,23 +275,59 @@ public final class DatabaseHelper extends Thread {
     public final int level;
     public final boolean newForRun;
     public final long when; // in MS
+    public final double lat0;
+    public final double lon0;
+    public final long when0; // when the fix at lat0,lon0 was lost
 
-    public DBPending( final Network network, final int level, final boolean newForRun ) {
+    public DBPending( final Network network, final int level, final boolean newForRun, final Location lastLoc, 
+        final long lastLocWhen ) {
       this.network = network;
       this.level = level;
       this.newForRun = newForRun;
       this.when = System.currentTimeMillis();
+      this.lat0 = lastLoc.getLatitude();
+      this.lon0 = lastLoc.getLongitude();
+      this.when0 = lastLocWhen;
     }
   }
+  
+  /** a fix that ended a gps outage */
+  final class DBRecovery {
+    public final Location location;
+    public final long when; // in MS
+    
+    public DBRecovery( final Location location ) {
+      this.location = location;
+      this.when = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * told about every commit that changed networks, on the db thread, so keep it quick.
+   */
+  public interface CommitListener {
+    /**
+     * @param touched the networks written to, only good for the call. null if it could have been anything
+     */
+    public void committed( TouchedNetworks touched );
+    
+    /**
+     * summaries were rewritten without any observations changing, for which networks isn't tracked
+     */
+    public void summariesChanged();
+  }
 
   public DatabaseHelper( final Context context ) {    
     this.context = context.getApplicationContext();
     this.prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0 );
     setName("dbworker-" + getName());
     this.deathHandler = new DeathHandler(); 
+    commitScheduler.setTargetLatency( 
+        prefs.getLong( ListActivity.PREF_DB_COMMIT_LATENCY, CommitScheduler.DEFAULT_TARGET_LATENCY ) );
 
     queryThread = new QueryThread( this );
     queryThread.start();
+    addCommitListener( queryCache );
   }
   
   public SQLiteDatabase getDB() throws DBException {
@@ -163,6 +339,44 @@ public final class DatabaseHelper extends Thread {
     queryThread.addToQueue( request );
   }
   
+  /**
+   * what the ui has read, dropped as commits change it
+   */
+  public QueryCache getQueryCache() {
+    return queryCache;
+  }
+  
+  public void addCommitListener( final CommitListener listener ) {
+    commitListeners.add( listener );
+  }
+  
+  public void removeCommitListener( final CommitListener listener ) {
+    commitListeners.remove( listener );
+  }
+  
+  private void fireCommitted( final TouchedNetworks changed ) {
+    for ( final CommitListener listener : commitListeners ) {
+      listener.committed( changed );
+    }
+  }
+  
+  private void fireSummariesChanged() {
+    for ( final CommitListener listener : commitListeners ) {
+      listener.summariesChanged();
+    }
+  }
+  
+  /**
+   * for telling the writer about screen and power state, which decide how it batches
+   */
+  public CommitScheduler getCommitScheduler() {
+    return commitScheduler;
+  }
+  
+  public GpsTrack getGpsTrack() {
+    return gpsTrack;
+  }
+  
   private class DeathHandler extends Handler {    
     private boolean fired = false;
     
@@ -196,6 +410,21 @@ public final class DatabaseHelper extends Thread {
 		return queue.size();
 	}
   
+  /**
+   * the two write lanes, for per-lane depth and shed counts
+   */
+  public ObservationLanes<DBUpdate> getQueueLanes() {
+    return queue;
+  }
+  
+  /**
+   * @return observations spilled to the journal that haven't made it to the db yet
+   */
+  public int getJournalSize() {
+    final ObservationJournal currentJournal = journal;
+    return currentJournal == null ? 0 : currentJournal.getPendingCount();
+  }
+  
   @Override
   public void run() {
     try {
@@ -205,42 +434,103 @@ public final class DatabaseHelper extends Thread {
       Process.setThreadPriority( DB_PRIORITY );
       
       try {
-        // keep checking done, these counts take a while
-        if ( ! done.get() ) {
-          getNetworkCountFromDB();
-        }
+        // counts come from the counts table when the db is opened, this is just the upload marker
         if ( ! done.get() ) {
-          getLocationCountFromDB();
+          getMaxLocationIdFromDB();
         }
-//        if ( ! done.get() ) {        
-//          ListActivity.info("gsm count: " + getNetworkCountFromDB(NetworkType.GSM));
-//        }
-//        if ( ! done.get() ) {        
-//          ListActivity.info("cdma count: " + getNetworkCountFromDB(NetworkType.CDMA));
-//        }
       }
       catch ( DBException ex ) {
-        deathDialog( "getting counts from DB", ex );
+        deathDialog( "getting max id from DB", ex );
       }
       
       final List<DBUpdate> drain = new ArrayList<DBUpdate>();
+      final List<DBPending> flushing = new ArrayList<DBPending>();
+      final List<DBUpdate> coalesced = new ArrayList<DBUpdate>();
+      final Map<String,double[]> drainNetworks = new HashMap<String,double[]>();
+      final ObservationJournal.ReplayHandler replayHandler = new ObservationJournal.ReplayHandler() {
+        public void replay( final Network network, final int level, final Location location, 
+            final boolean newForRun ) {
+          drain.add( new DBUpdate( network, level, location, newForRun ) );
+        }
+      };
       while ( ! done.get() ) {
         try {
           checkDB();
+          if ( locationsMigrating ) {
+            // a batch of old rows per pass, so the migration never holds up observations for long
+            migrateLocations();
+          }
+          else if ( counters.isVerifying() ) {
+            // same for recounting
+            synchronized(TRANS_LOCK) {
+              counters.verifyStep( db, NETWORK_V2_TABLE, LOCATION_V2_TABLE );
+            }
+          }
+          else if ( ssidIndex.isBackfilling() ) {
+            // and for indexing ssids from before the index
+            synchronized(TRANS_LOCK) {
+              ssidIndex.backfillStep( db, NETWORK_V2_TABLE );
+            }
+          }
+          else if ( summaries.isBackfilling() ) {
+            // and summing up networks from before the summaries
+            synchronized(TRANS_LOCK) {
+              summaries.backfillStep( db, NETWORK_V2_TABLE, LOCATION_V2_TABLE );
+            }
+            // nothing else changed, the rest of what's cached still holds
+            fireSummariesChanged();
+          }
           drain.clear();
-          drain.add( queue.take() );
-          final long startTime = System.currentTimeMillis();
+          final ObservationJournal currentJournal = journal;
+          if ( ( currentJournal == null || ! currentJournal.hasPending() ) 
+              && pending.isEmpty() && recoveries.isEmpty() && ! locationsMigrating && ! counters.isVerifying() 
+              && ! ssidIndex.isBackfilling() && ! summaries.isBackfilling() ) {
+            // null if woken up for pending work
+            final DBUpdate first = queue.take();
+            if ( first != null ) {
+              drain.add( first );
+            }
+          }
+          final int maxDrain = commitScheduler.getDrainSize();
           
-          // give other thread some time
-          Thread.yield();
+          // if more observations are coming and the oldest can afford it, wait to write them all at once
+          final long lingerStart = System.currentTimeMillis();
+          final long oldestAge = drain.isEmpty() ? 0L : lingerStart - drain.get( 0 ).when;
+          final long linger = commitScheduler.getLingerMillis( queue.size() + drain.size(), oldestAge );
+          if ( linger > 0L ) {
+            while ( ! done.get() && queue.size() + drain.size() < maxDrain 
+                && System.currentTimeMillis() - lingerStart < linger ) {
+              ListActivity.sleep( LINGER_STEP );
+            }
+          }
+          else {
+            // give other thread some time
+            Thread.yield();
+          }
+          final long startTime = System.currentTimeMillis();
           
           // now that we've taken care of the one, see if there's more we can do in this transaction
-          if ( MAX_DRAIN > 1 ) {
+          if ( maxDrain > drain.size() ) {
             // try to drain some more
-            queue.drainTo( drain, MAX_DRAIN - 1 );
+            queue.drainTo( drain, maxDrain - drain.size() );
           }
-          final int drainSize = drain.size();
+          // then anything spilled to the journal, always leaving it some room so it catches up
+          int replayed = 0;
+          if ( currentJournal != null ) {
+            replayed = currentJournal.replay( Math.max( maxDrain - drain.size(), maxDrain / 4 ), replayHandler );
+          }
+          // look at the recovery before taking the pending, so everything seen before that fix is in the table
+          final DBRecovery recovery = recoveries.peek();
+          flushing.clear();
+          for ( DBPending pend = pending.poll(); pend != null; pend = pending.poll() ) {
+            flushing.add( pend );
+          }
+          final int queuedSize = drain.size();
+          int drainSize = queuedSize;
           
+          int recovered = 0;
+          int lookups = 0;
+          int folded = 0;
           int countdown = 10;
           while ( countdown > 0 && ! done.get() ) {
             // doubt this will help the exclusive lock problems, but trying anyway
@@ -248,28 +538,70 @@ public final class DatabaseHelper extends Thread {
               try {
                 // do a transaction for everything
                 db.beginTransaction();
-                for ( int i = 0; i < drainSize; i++ ) {
-                  addObservation( drain.get( i ), drainSize );
+                // a retry starts over with just what came off the queue
+                drain.subList( queuedSize, drain.size() ).clear();
+                writePending( flushing );
+                long recoveredMaxId = -1L;
+                if ( recovery != null ) {
+                  recoveredMaxId = recoverPending( recovery, drain );
+                }
+                recovered = drain.size() - queuedSize;
+                drainSize = drain.size();
+                // resolve every bssid the index doesn't know in a few queries, rather than one per row
+                lookups = prefetchNetworks( drain, drainNetworks );
+                // fast mode is decided once per drain, so coalescing and writing agree
+                final boolean fastMode = isFastMode();
+                folded = coalesce( drain, drainNetworks, fastMode, coalesced );
+                final int writeSize = coalesced.size();
+                for ( int i = 0; i < writeSize; i++ ) {
+                  addObservation( coalesced.get( i ), drainSize, drainNetworks, fastMode );
                 }
+                if ( recoveredMaxId >= 0L ) {
+                  db.execSQL( "DELETE FROM " + PENDING_TABLE + " WHERE _id <= ? AND time <= ?", 
+                      new Object[]{ recoveredMaxId, recovery.when } );
+                }
+                counters.write();
                 db.setTransactionSuccessful();
                 db.endTransaction();
+                counters.committed();
+                if ( touched.size() > 0 ) {
+                  fireCommitted( touched );
+                  touched.clear();
+                }
                 countdown = 0;
+                if ( recovery != null && recovered < RECOVER_BATCH ) {
+                  // that was the last of what this fix can recover
+                  recoveries.poll();
+                  ListActivity.info( "done recovering locations with the power of lerp" );
+                }
+                if ( replayed > 0 ) {
+                  // committed, the journal can let go of these
+                  currentJournal.commit( replayed );
+                }
               }
               catch ( Exception ex ) {
+                counters.rolledBack();
+                touched.clear();
                 ListActivity.warn("DB run loop ex, countdown: " + countdown + " ex: " + ex );
                 countdown--;
                 if ( countdown <= 0 ) {
                   // give up
                   throw ex;
                 }
-                ListActivity.sleep(100L);                
+                ListActivity.sleep( commitScheduler.getRetryDelay( 10 - countdown ) );
               }
             }
           }
           
+          coalescedCount.addAndGet( folded );
           final long delay = System.currentTimeMillis() - startTime;
+          commitScheduler.committed( drainSize, delay );
           if ( delay > 1000L || ListActivity.DEBUG ) {
-            ListActivity.info( "db run loop took: " + delay + " ms. drainSize: " + drainSize );
+            ListActivity.info( "db run loop took: " + delay + " ms. drainSize: " + drainSize 
+                + " lookups: " + lookups + " journaled: " + replayed + " coalesced: " + folded 
+                + " pending: " + flushing.size() + " recovered: " + recovered 
+                + " lingered: " + linger 
+                + " " + previousWrittenLocations + " " + commitScheduler );
           }
         }
         catch ( final InterruptedException ex ) {
@@ -337,64 +669,15 @@ public final class DatabaseHelper extends Thread {
       path.mkdirs();
       dbFilename = DATABASE_PATH + DATABASE_NAME;
     }
-    final File dbFile = new File( dbFilename );
-    boolean doCreateNetwork = false;
-    boolean doCreateLocation = false;
-    if ( ! dbFile.exists() ) {
-      doCreateNetwork = true;
-      doCreateLocation = true;
-    }
     ListActivity.info("opening: " + dbFilename );
     
     if ( hasSD ) {
       db = SQLiteDatabase.openOrCreateDatabase( dbFilename, null );
+      dbPath = dbFilename;
     }
     else {      
       db = context.openOrCreateDatabase( dbFilename, MAX_PRIORITY, null );
-    }
-    
-    try {
-      db.rawQuery( "SELECT count(*) FROM network", (String[]) null ).close();
-    }
-    catch ( final SQLiteException ex ) {
-      ListActivity.info("exception selecting from network, try to create. ex: " + ex );
-      doCreateNetwork = true;
-    }
-    
-    try {
-      db.rawQuery( "SELECT count(*) FROM location", (String[]) null ).close();
-    }
-    catch ( final SQLiteException ex ) {
-      ListActivity.info("exception selecting from location, try to create. ex: " + ex );
-      doCreateLocation = true;
-    }
-    
-    if ( doCreateNetwork ) {
-      ListActivity.info( "creating network table" );
-      try {
-        db.execSQL(NETWORK_CREATE);
-        if ( db.getVersion() == 0 ) {
-          // only diff to version 1 is the "type" column in network table
-          db.setVersion(1);
-        }
-      }
-      catch ( final SQLiteException ex ) {
-        ListActivity.error( "sqlite exception: " + ex, ex );
-      }
-    }
-    
-    if ( doCreateLocation ) {
-      ListActivity.info( "creating location table" );
-      try {
-        db.execSQL(LOCATION_CREATE);
-        // new database, reset a marker, if any
-        final Editor edit = prefs.edit();
-        edit.putLong( ListActivity.PREF_DB_MARKER, 0L );
-        edit.commit();
-      }
-      catch ( final SQLiteException ex ) {
-        ListActivity.error( "sqlite exception: " + ex, ex );
-      }
+      dbPath = context.getDatabasePath( dbFilename ).getAbsolutePath();
     }
     
     // VACUUM turned off, this takes a long long time (20 min), and has little effect since we're not using DELETE
@@ -406,11 +689,16 @@ public final class DatabaseHelper extends Thread {
     db.execSQL( "PRAGMA count_changes = false" );
     // keep transactions in memory until committed
     db.execSQL( "PRAGMA temp_store = MEMORY" );
-    // keep around the journal file, don't create and delete a ton of times
-    db.rawQuery( "PRAGMA journal_mode = PERSIST", (String[]) null ).close();
+    walEnabled = enableWriteAheadLogging();
+    if ( ! walEnabled ) {
+      // keep around the journal file, don't create and delete a ton of times
+      db.rawQuery( "PRAGMA journal_mode = PERSIST", (String[]) null ).close();
+    }
     
+    final boolean hasNetworkTable = hasTable( NETWORK_TABLE );
+    final boolean hasLocationTable = hasTable( LOCATION_TABLE );
     ListActivity.info( "database version: " + db.getVersion() );
-    if ( db.getVersion() == 0 ) {
+    if ( hasNetworkTable && db.getVersion() == 0 ) {
       ListActivity.info("upgrading db from 0 to 1");
       try {
         db.execSQL( "ALTER TABLE network ADD COLUMN type text not null default '" + NetworkType.WIFI.getCode() + "'" );
@@ -426,15 +714,301 @@ public final class DatabaseHelper extends Thread {
     // drop index, was never publically released
     db.execSQL("DROP INDEX IF EXISTS type");
     
+    if ( ! hasTable( NETWORK_V2_TABLE ) ) {
+      ListActivity.info( "creating v2 tables" );
+      db.beginTransaction();
+      try {
+        if ( hasNetworkTable ) {
+          db.execSQL( "ALTER TABLE " + NETWORK_TABLE + " RENAME TO " + NETWORK_V1_TABLE );
+        }
+        db.execSQL( NETWORK_V2_CREATE );
+        db.execSQL( LOCATION_V2_CREATE );
+        if ( hasLocationTable ) {
+          db.execSQL( "ALTER TABLE " + LOCATION_TABLE + " RENAME TO " + LOCATION_V1_TABLE );
+          // carry on the _id sequence, uploads and the db marker go by it
+          db.execSQL( "INSERT INTO sqlite_sequence (name,seq) SELECT '" + LOCATION_V2_TABLE 
+              + "',seq FROM sqlite_sequence WHERE name = '" + LOCATION_V1_TABLE + "'" );
+        }
+        db.setVersion(3);
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+      }
+      if ( ! hasLocationTable ) {
+        // new database, reset a marker, if any
+        final Editor edit = prefs.edit();
+        edit.putLong( ListActivity.PREF_DB_MARKER, 0L );
+        edit.commit();
+      }
+    }
+    
+    if ( db.getVersion() == 2 ) {
+      ListActivity.info( "upgrading db from 2 to 3" );
+      final long start = System.currentTimeMillis();
+      db.beginTransaction();
+      try {
+        db.execSQL( "ALTER TABLE " + NETWORK_V2_TABLE + " ADD COLUMN cell integer" );
+        db.execSQL( "UPDATE " + NETWORK_V2_TABLE + " SET cell = " + GeoCells.cellSql( "lastlat", "lastlon" ) );
+        db.setVersion(3);
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+      }
+      ListActivity.info( "network cells filled in " + (System.currentTimeMillis() - start) + "ms" );
+    }
+    db.execSQL( NETWORK_CELL_INDEX );
+    
+    loadCellKeys();
+    // networks are few enough to move before anything else touches the db
+    migrateNetworks();
+    locationsMigrating = hasTable( LOCATION_V1_TABLE );
+    if ( locationsMigrating ) {
+      db.execSQL( NETWORK_BSSID_INDEX );
+    }
+    createViews();
+    
+    db.execSQL( PENDING_CREATE );
+    db.execSQL( DBCounters.createSql() );
+    counters.open( db );
+    ssidIndex.open( db );
+    // a network's observations by key, for the summary backfill and the network screen's map
+    db.execSQL( LOCATION_NETKEY_INDEX );
+    summaries.open( db );
+    
     // compile statements
-    insertNetwork = db.compileStatement( "INSERT INTO network"
-        + " (bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,type) VALUES (?,?,?,?,?,?,?,?)" );
+    insertNetwork = db.compileStatement( "INSERT INTO " + NETWORK_V2_TABLE
+        + " (netkey,bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,type,cell) VALUES (?,?,?,?,?,?,?,?,?,?)" );
+    
+    insertLocation = db.compileStatement( "INSERT INTO " + LOCATION_V2_TABLE
+        + " (netkey,level,lat,lon,altitude,accuracy,time) VALUES (?,?,?,?,?,?,?)" );
     
-    insertLocation = db.compileStatement( "INSERT INTO location"
-        + " (bssid,level,lat,lon,altitude,accuracy,time) VALUES (?,?,?,?,?,?,?)" );
+    updateNetwork = db.compileStatement( "UPDATE " + NETWORK_V2_TABLE + " SET"
+        + " lasttime = ?, lastlat = ?, lastlon = ?, cell = ? WHERE netkey = ?" );
     
-    updateNetwork = db.compileStatement( "UPDATE network SET"
-        + " lasttime = ?, lastlat = ?, lastlon = ? WHERE bssid = ?" );
+    insertPending = db.compileStatement( "INSERT INTO " + PENDING_TABLE
+        + " (bssid,ssid,frequency,capabilities,type,level,newforrun,time,lat0,lon0,time0)"
+        + " VALUES (?,?,?,?,?,?,?,?,?,?,?)" );
+    
+    if ( journal == null ) {
+      // anything left in here from a killed process gets replayed by the run loop
+      final File journalFile = hasSD ? new File( DATABASE_PATH + ObservationJournal.JOURNAL_NAME ) 
+        : new File( context.getFilesDir(), ObservationJournal.JOURNAL_NAME );
+      try {
+        journal = new ObservationJournal( journalFile, JOURNAL_CAPACITY );
+      }
+      catch ( IOException ex ) {
+        ListActivity.error( "could not open observation journal: " + ex, ex );
+      }
+    }
+  }
+  
+  /**
+   * write-ahead logging lets the query pool's readers run while the writer commits. it's API 11, so
+   * found by reflection, older devices keep the rollback journal and share the writer's connection.
+   * @return true if the db is in wal mode
+   */
+  private boolean enableWriteAheadLogging() {
+    try {
+      final Method method = SQLiteDatabase.class.getMethod( "enableWriteAheadLogging" );
+      final boolean enabled = (Boolean) method.invoke( db );
+      ListActivity.info( "write-ahead logging enabled: " + enabled );
+      return enabled;
+    }
+    catch ( NoSuchMethodException ex ) {
+      ListActivity.info( "no write-ahead logging on this device" );
+    }
+    catch ( Exception ex ) {
+      ListActivity.warn( "exception enabling write-ahead logging: " + ex );
+    }
+    return false;
+  }
+  
+  /**
+   * a read-only connection of its own, for a query worker. without wal a reader holding its lock 
+   * stalls the writer's commits, so then it's null and the worker shares the writer's connection.
+   * @return the connection, or null to use getDB()
+   */
+  public SQLiteDatabase openReader() throws DBException {
+    checkDB();
+    if ( ! walEnabled ) {
+      return null;
+    }
+    try {
+      return SQLiteDatabase.openDatabase( dbPath, null, SQLiteDatabase.OPEN_READONLY );
+    }
+    catch ( SQLiteException ex ) {
+      ListActivity.warn( "could not open reader, sharing the writer's connection: " + ex );
+      return null;
+    }
+  }
+  
+  private boolean hasTable( final String table ) {
+    final Cursor cursor = db.rawQuery( "SELECT count(*) FROM sqlite_master WHERE type = 'table' AND name = ?", 
+        new String[]{ table } );
+    cursor.moveToFirst();
+    final boolean exists = cursor.getLong(0) > 0;
+    cursor.close();
+    return exists;
+  }
+  
+  private void createViews() {
+    db.execSQL( "DROP VIEW IF EXISTS " + NETWORK_TABLE );
+    db.execSQL( "DROP VIEW IF EXISTS " + LOCATION_TABLE );
+    db.execSQL( NETWORK_VIEW );
+    db.execSQL( locationsMigrating ? LOCATION_MIGRATING_VIEW : LOCATION_VIEW );
+  }
+  
+  private void loadCellKeys() {
+    cellKeys.clear();
+    long minKey = -1L;
+    final Cursor cursor = db.rawQuery( "SELECT bssid,netkey FROM " + NETWORK_V2_TABLE + " WHERE netkey < 0", 
+        (String[]) null );
+    while ( cursor.moveToNext() ) {
+      final long key = cursor.getLong(1);
+      cellKeys.put( cursor.getString(0), key );
+      minKey = Math.min( minKey, key );
+    }
+    cursor.close();
+    // NO_KEY is -1
+    nextCellKey = minKey - 1;
+    ListActivity.info( "cell keys: " + cellKeys.size() );
+  }
+  
+  /**
+   * @param bssid a mac or a cell id
+   * @param create assign a key to a cell id that doesn't have one yet
+   * @return the packed mac for wifi, the surrogate for cells, or NO_KEY for a cell that isn't in network2
+   */
+  private long netKey( final String bssid, final boolean create ) {
+    final long macKey = MacLocationIndex.toKey( bssid );
+    if ( macKey != MacLocationIndex.NO_KEY ) {
+      return macKey;
+    }
+    Long cellKey = cellKeys.get( bssid );
+    if ( cellKey == null && create ) {
+      synchronized ( cellKeys ) {
+        cellKey = cellKeys.get( bssid );
+        if ( cellKey == null ) {
+          cellKey = nextCellKey--;
+          cellKeys.put( bssid, cellKey );
+        }
+      }
+    }
+    return cellKey == null ? MacLocationIndex.NO_KEY : cellKey;
+  }
+  
+  private static long e7( final double degrees ) {
+    return Math.round( degrees * E7 );
+  }
+  
+  /**
+   * move network_v1 into network2, MIGRATE_BATCH rows per transaction, so a kill part way through
+   * just picks up where it left off. drops network_v1 when done.
+   */
+  private void migrateNetworks() {
+    if ( ! hasTable( NETWORK_V1_TABLE ) ) {
+      return;
+    }
+    ListActivity.info( "migrating networks to v2" );
+    final long start = System.currentTimeMillis();
+    final SQLiteStatement insert = db.compileStatement( "INSERT OR IGNORE INTO " + NETWORK_V2_TABLE
+        + " (netkey,bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,type,cell) VALUES (?,?,?,?,?,?,?,?,?,?)" );
+    int total = 0;
+    int moved = 0;
+    do {
+      moved = 0;
+      db.beginTransaction();
+      try {
+        final Cursor cursor = db.rawQuery( "SELECT rowid,bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon,type"
+            + " FROM " + NETWORK_V1_TABLE + " ORDER BY rowid LIMIT " + MIGRATE_BATCH, (String[]) null );
+        long maxRowid = -1L;
+        while ( cursor.moveToNext() ) {
+          maxRowid = cursor.getLong(0);
+          final String bssid = cursor.getString(1);
+          insert.bindLong( 1, netKey( bssid, true ) );
+          insert.bindString( 2, bssid );
+          insert.bindString( 3, cursor.getString(2) );
+          insert.bindLong( 4, cursor.getInt(3) );
+          insert.bindString( 5, cursor.getString(4) );
+          insert.bindLong( 6, cursor.getLong(5) );
+          final long lat = e7( cursor.getDouble(6) );
+          final long lon = e7( cursor.getDouble(7) );
+          insert.bindLong( 7, lat );
+          insert.bindLong( 8, lon );
+          insert.bindString( 9, cursor.getString(8) );
+          insert.bindLong( 10, GeoCells.cell( lat, lon ) );
+          insert.execute();
+          moved++;
+        }
+        cursor.close();
+        if ( moved > 0 ) {
+          db.execSQL( "DELETE FROM " + NETWORK_V1_TABLE + " WHERE rowid <= " + maxRowid );
+        }
+        else {
+          db.execSQL( "DROP TABLE " + NETWORK_V1_TABLE );
+        }
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+      }
+      total += moved;
+    } while ( moved > 0 );
+    insert.close();
+    ListActivity.info( "migrated " + total + " networks to v2 in " + (System.currentTimeMillis() - start) + "ms" );
+  }
+  
+  /**
+   * move the next MIGRATE_BATCH rows of location_v1 into location2, keeping their _id. 
+   * db thread only, between drains. drops location_v1 and switches the view over when done.
+   * @return how many rows were moved
+   */
+  private int migrateLocations() {
+    int moved = 0;
+    synchronized(TRANS_LOCK) {
+      final long start = System.currentTimeMillis();
+      final SQLiteStatement insert = db.compileStatement( "INSERT INTO " + LOCATION_V2_TABLE
+          + " (_id,netkey,level,lat,lon,altitude,accuracy,time) VALUES (?,?,?,?,?,?,?,?)" );
+      db.beginTransaction();
+      try {
+        final Cursor cursor = db.rawQuery( "SELECT _id,bssid,level,lat,lon,altitude,accuracy,time"
+            + " FROM " + LOCATION_V1_TABLE + " ORDER BY _id LIMIT " + MIGRATE_BATCH, (String[]) null );
+        long maxId = -1L;
+        while ( cursor.moveToNext() ) {
+          maxId = cursor.getLong(0);
+          insert.bindLong( 1, maxId );
+          insert.bindLong( 2, netKey( cursor.getString(1), true ) );
+          insert.bindLong( 3, cursor.getInt(2) );
+          insert.bindLong( 4, e7( cursor.getDouble(3) ) );
+          insert.bindLong( 5, e7( cursor.getDouble(4) ) );
+          insert.bindLong( 6, Math.round( cursor.getDouble(5) * 10d ) );
+          insert.bindLong( 7, Math.round( cursor.getFloat(6) ) );
+          insert.bindLong( 8, cursor.getLong(7) );
+          insert.execute();
+          moved++;
+        }
+        cursor.close();
+        if ( moved > 0 ) {
+          db.execSQL( "DELETE FROM " + LOCATION_V1_TABLE + " WHERE _id <= " + maxId );
+        }
+        else {
+          db.execSQL( "DROP TABLE " + LOCATION_V1_TABLE );
+          db.execSQL( "DROP INDEX IF EXISTS network2_bssid" );
+          locationsMigrating = false;
+          createViews();
+          ListActivity.info( "location migration to v2 done" );
+        }
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+        insert.close();
+      }
+      logTime( start, "db locations migrated: " + moved );
+    }
+    return moved;
   }
   
   /**
@@ -442,6 +1016,8 @@ public final class DatabaseHelper extends Thread {
    */
   public void close() {
     done.set( true );
+    // workers close their readers on the way out
+    queryThread.setDone();
     // interrupt the take, if any
     this.interrupt();
     // give time for db to finish any writes
@@ -453,6 +1029,11 @@ public final class DatabaseHelper extends Thread {
       this.interrupt();
     }
     
+    final ObservationJournal currentJournal = journal;
+    if ( currentJournal != null ) {
+      currentJournal.force();
+    }
+    
     countdown = 50;
     while ( db != null && db.isOpen() && countdown > 0 ) {
       try {
@@ -466,6 +1047,13 @@ public final class DatabaseHelper extends Thread {
           if ( updateNetwork != null ) {
             updateNetwork.close();
           }
+          if ( insertPending != null ) {
+            insertPending.close();
+          }
+          // only vouch for the counts once the db thread is done with them
+          counters.close( db, ! this.isAlive() );
+          ssidIndex.close();
+          summaries.close();
           if ( db.isOpen() ) {
             db.close();
           }
@@ -493,8 +1081,12 @@ public final class DatabaseHelper extends Thread {
   public void blockingAddObservation( final Network network, final Location location, final boolean newForRun )
       throws InterruptedException {
     
-    final DBUpdate update = new DBUpdate( network, network.getLevel(), location, newForRun );
-    queue.put(update);    
+    final ObservationJournal currentJournal = journal;
+    if ( currentJournal == null || ! currentJournal.appendIfPending( network, network.getLevel(), location, newForRun ) ) {
+      final DBUpdate update = new DBUpdate( network, network.getLevel(), location, newForRun );
+      queue.put( update, newForRun );
+    }
+    commitScheduler.arrived();
   }
   
   public boolean addObservation( final Network network, final Location location, final boolean newForRun ) {
@@ -504,95 +1096,265 @@ public final class DatabaseHelper extends Thread {
   private boolean addObservation( final Network network, final int level, final Location location, 
       final boolean newForRun ) {
     
-    final DBUpdate update = new DBUpdate( network, level, location, newForRun );
-    
-    // data is lost if queue is full!
-    boolean added = queue.offer( update );
+    final ObservationJournal currentJournal = journal;
+    // while the journal is catching up, go in behind what's in there. the db thread drains the lanes before
+    // replaying, so a newer sighting through a lane would be written first and then rewound by the older one.
+    // if the journal is full too, better out of order than lost
+    boolean added = currentJournal != null && currentJournal.appendIfPending( network, level, location, newForRun );
     if ( ! added ) {
-      ListActivity.info( "queue full, not adding: " + network.getBssid() + " ssid: " + network.getSsid() );
-      if ( System.currentTimeMillis() - prevQueueCullTime > QUEUE_CULL_TIMEOUT ) {
-        ListActivity.info("culling queue. size: " + queue.size() );
-        // go thru the queue, cull out anything not newForRun
-        for ( Iterator<DBUpdate> it = queue.iterator(); it.hasNext(); ) {
-          final DBUpdate val = it.next();
-          if ( ! val.newForRun ) {
-            it.remove();
-          }
+      final DBUpdate update = new DBUpdate( network, level, location, newForRun );
+      // new-for-run and refresh observations have their own lanes, so re-sightings can't crowd out new ones
+      added = queue.offer( update, newForRun );
+    }
+    if ( ! added && currentJournal != null ) {
+      // lane is full, spill to the journal, the db thread will catch up on it
+      added = currentJournal.append( network, level, location, newForRun );
+    }
+    // data is lost if lane and journal are full!
+    if ( ! added ) {
+      queue.shed( newForRun );
+      ListActivity.info( "queue full, not adding: " + network.getBssid() + " ssid: " + network.getSsid() 
+          + " newForRun: " + newForRun );
+    }
+    if ( added ) {
+      commitScheduler.arrived();
+    }
+    return added;
+  }
+  
+  /**
+   * look up the network rows for everything in the drain the index can't answer, LOOKUP_CHUNK at a time.
+   * @param drain the updates about to be written
+   * @param drainNetworks filled with bssid -&gt; { lasttime, lastlat, lastlon }, or NOT_IN_DB
+   * @return how many queries it took
+   */
+  private int prefetchNetworks( final List<DBUpdate> drain, final Map<String,double[]> drainNetworks ) {
+    drainNetworks.clear();
+    final List<Long> keys = new ArrayList<Long>();
+    for ( final DBUpdate update : drain ) {
+      final String bssid = update.network.getBssid();
+      if ( drainNetworks.containsKey( bssid ) ) {
+        continue;
+      }
+      final long macKey = MacLocationIndex.toKey( bssid );
+      if ( macKey != MacLocationIndex.NO_KEY && previousWrittenLocations.contains( macKey ) ) {
+        continue;
+      }
+      // assume not there until a row says otherwise
+      drainNetworks.put( bssid, NOT_IN_DB );
+      final long key = netKey( bssid, false );
+      if ( key != MacLocationIndex.NO_KEY ) {
+        // a cell without a key isn't in the db, no need to ask
+        keys.add( key );
+      }
+    }
+    
+    int queries = 0;
+    final int total = keys.size();
+    for ( int from = 0; from < total; from += LOOKUP_CHUNK ) {
+      final int to = Math.min( from + LOOKUP_CHUNK, total );
+      // keys are numbers, safe to inline
+      final StringBuilder sql = new StringBuilder( "SELECT bssid,lasttime,lastlat,lastlon FROM " )
+        .append( NETWORK_V2_TABLE ).append( " WHERE netkey IN (" );
+      for ( int i = from; i < to; i++ ) {
+        if ( i > from ) {
+          sql.append( ',' );
         }
-        ListActivity.info("culled queue. size now: " + queue.size() );
-        added = queue.offer( update );
-        if ( ! added ) {
-          ListActivity.info( "queue still full, couldn't add: " + network.getBssid() );
+        sql.append( keys.get( i ).longValue() );
+      }
+      sql.append( ")" );
+      
+      final long start = System.currentTimeMillis();
+      final Cursor cursor = db.rawQuery( sql.toString(), (String[]) null );
+      while ( cursor.moveToNext() ) {
+        drainNetworks.put( cursor.getString(0), 
+            new double[]{ cursor.getLong(1), cursor.getLong(2) / E7, cursor.getLong(3) / E7 } );
+      }
+      cursor.close();
+      logTime( start, "db networks prefetched: " + (to - from) );
+      queries++;
+    }
+    return queries;
+  }
+  
+  /**
+   * fold repeat sightings of a bssid within a drain, keeping only the ones addObservation would write
+   * (new, or a changeWorthy/bigChange move from the last written spot). a network not in the db yet with
+   * nothing but blank sightings keeps its first, which inserts the network row the way it would have
+   * unfolded. of the kept ones, only the last updates the network row.
+   * @param drain the updates, in queue order
+   * @param drainNetworks the prefetched network rows
+   * @param fastMode the fast mode addObservation will be called with
+   * @param out filled with the updates to write
+   * @return how many updates were folded away
+   */
+  private int coalesce( final List<DBUpdate> drain, final Map<String,double[]> drainNetworks, 
+      final boolean fastMode, final List<DBUpdate> out ) {
+    
+    out.clear();
+    if ( ListActivity.DEBUG ) {
+      // everything is written in debug, nothing to fold
+      out.addAll( drain );
+      return 0;
+    }
+    
+    final Map<String,List<DBUpdate>> byBssid = new HashMap<String,List<DBUpdate>>();
+    for ( final DBUpdate update : drain ) {
+      update.skipNetworkUpdate = false;
+      List<DBUpdate> group = byBssid.get( update.network.getBssid() );
+      if ( group == null ) {
+        group = new ArrayList<DBUpdate>( 1 );
+        byBssid.put( update.network.getBssid(), group );
+      }
+      group.add( update );
+    }
+    
+    final long now = System.currentTimeMillis();
+    final double[] last = new double[3];
+    for ( final DBUpdate update : drain ) {
+      final String bssid = update.network.getBssid();
+      final List<DBUpdate> group = byBssid.remove( bssid );
+      if ( group == null ) {
+        // already handled with its first sighting
+        continue;
+      }
+      if ( group.size() == 1 ) {
+        out.add( update );
+        continue;
+      }
+      
+      // start from what addObservation will start from
+      final long macKey = MacLocationIndex.toKey( bssid );
+      boolean isNew = false;
+      if ( macKey == MacLocationIndex.NO_KEY || ! previousWrittenLocations.peek( macKey, last ) ) {
+        final double[] dbValues = drainNetworks.get( bssid );
+        if ( dbValues == null ) {
+          // no idea what's in the db, don't guess
+          out.addAll( group );
+          continue;
+        }
+        if ( dbValues == NOT_IN_DB ) {
+          isNew = true;
+        }
+        else {
+          System.arraycopy( dbValues, 0, last, 0, 3 );
         }
-        prevQueueCullTime = System.currentTimeMillis();
       }
       
+      DBUpdate lastWriter = null;
+      for ( final DBUpdate candidate : group ) {
+        if ( ! isBlank( candidate ) 
+            && ( isNew || isWriteWorthy( (long) last[0], last[1], last[2], candidate, now, fastMode ) ) ) {
+          out.add( candidate );
+          isNew = false;
+          last[0] = candidate.time;
+          last[1] = candidate.lat;
+          last[2] = candidate.lon;
+          if ( lastWriter != null ) {
+            lastWriter.skipNetworkUpdate = true;
+          }
+          lastWriter = candidate;
+        }
+      }
+      if ( isNew ) {
+        // all blank, like an observed list import, but the network row still has to go in
+        out.add( group.get( 0 ) );
+      }
     }
-    return added;
+    return drain.size() - out.size();
+  }
+  
+  private static boolean isBlank( final DBUpdate update ) {
+    return update.lat == 0 && update.lon == 0
+        && update.altitude == 0 && update.accuracy == 0
+        && update.level == 0;
   }
   
-  private void addObservation( final DBUpdate update, final int drainSize ) throws DBException {
+  /**
+   * has the network moved far enough from where we last wrote it, or been gone long enough, to write again
+   */
+  private static boolean isWriteWorthy( final long lasttime, final double lastlat, final double lastlon, 
+      final DBUpdate update, final long now, final boolean fastMode ) {
+    
+    final double latDiff = Math.abs(lastlat - update.lat);
+    final double lonDiff = Math.abs(lastlon - update.lon);
+    final boolean smallChange = latDiff > SMALL_LATLON_CHANGE || lonDiff > SMALL_LATLON_CHANGE;
+    final boolean mediumChange = latDiff > MEDIUM_LATLON_CHANGE || lonDiff > MEDIUM_LATLON_CHANGE;
+    final boolean bigChange = latDiff > BIG_LATLON_CHANGE || lonDiff > BIG_LATLON_CHANGE;
+    // ListActivity.info( "lasttime: " + lasttime + " now: " + now 
+    //    + " lastlat: " + lastlat + " lat: " + update.lat 
+    //    + " lastlon: " + lastlon + " lon: " + update.lon );
+    final boolean changeWorthy = mediumChange || (now - lasttime > SMALL_LOC_DELAY && smallChange);
+    return bigChange || (! fastMode && changeWorthy );
+  }
+  
+  private void addObservation( final DBUpdate update, final int drainSize, final Map<String,double[]> drainNetworks,
+      final boolean fastMode ) throws DBException {
     checkDB();
     final Network network = update.network;
-    final Location location = update.location;
     final String bssid = network.getBssid();
-    final String[] bssidArgs = new String[]{ bssid }; 
+    final long macKey = MacLocationIndex.toKey( bssid );
     
     long lasttime = 0;
     double lastlat = 0;
     double lastlon = 0;
     boolean isNew = false;
     
-    // first try cache
-    final Location prevWrittenLocation = previousWrittenLocationsCache.get( bssid );
-    if ( prevWrittenLocation != null ) {
+    // first try cache, cell towers aren't macs and always go to the db
+    if ( macKey != MacLocationIndex.NO_KEY && previousWrittenLocations.get( macKey, previousWrittenValues ) ) {
       // cache hit!
-      lasttime = prevWrittenLocation.getTime();
-      lastlat = prevWrittenLocation.getLatitude();
-      lastlon = prevWrittenLocation.getLongitude();
+      lasttime = (long) previousWrittenValues[0];
+      lastlat = previousWrittenValues[1];
+      lastlon = previousWrittenValues[2];
       // ListActivity.info( "db cache hit. bssid: " + network.getBssid() );
     }
     else {
-      // cache miss, get the last values from the db, if any
-      long start = System.currentTimeMillis();
-      // SELECT: can't precompile, as it has more than 1 result value
-      final Cursor cursor = db.rawQuery("SELECT lasttime,lastlat,lastlon FROM network WHERE bssid = ?", bssidArgs );
-      logTime( start, "db network queried " + bssid );
-      if ( cursor.getCount() == 0 ) {
-        insertNetwork.bindString( 1, bssid );
-        insertNetwork.bindString( 2, network.getSsid() );
-        insertNetwork.bindLong( 3, network.getFrequency() );
-        insertNetwork.bindString( 4, network.getCapabilities() );
-        insertNetwork.bindLong( 5, location.getTime() );
-        insertNetwork.bindDouble( 6, location.getLatitude() );
-        insertNetwork.bindDouble( 7, location.getLongitude() );
-        insertNetwork.bindString( 8, network.getType().getCode() );
+      // cache miss, use what the drain prefetch found in the db, if anything
+      double[] dbValues = drainNetworks.get( bssid );
+      if ( dbValues == null ) {
+        // not prefetched, ask the db directly
+        dbValues = selectNetwork( bssid );
+      }
+      if ( dbValues == NOT_IN_DB ) {
+        final long key = netKey( bssid, true );
+        insertNetwork.bindLong( 1, key );
+        insertNetwork.bindString( 2, bssid );
+        insertNetwork.bindString( 3, network.getSsid() );
+        insertNetwork.bindLong( 4, network.getFrequency() );
+        insertNetwork.bindString( 5, network.getCapabilities() );
+        insertNetwork.bindLong( 6, update.time );
+        final long lat = e7( update.lat );
+        final long lon = e7( update.lon );
+        insertNetwork.bindLong( 7, lat );
+        insertNetwork.bindLong( 8, lon );
+        insertNetwork.bindString( 9, network.getType().getCode() );
+        insertNetwork.bindLong( 10, GeoCells.cell( lat, lon ) );
         
-        start = System.currentTimeMillis();
+        final long start = System.currentTimeMillis();
         // INSERT
         insertNetwork.execute();
+        ssidIndex.add( key, network.getSsid() );
+        touched.add( bssid, network.getSsid(), update.lat, update.lon );
         logTime( start, "db network inserted: " + bssid + " drainSize: " + drainSize );
         
         // update the count
-        networkCount.incrementAndGet();
+        counters.networkAdded( network, netKey( bssid, false ) );
         isNew = true;
+        // a later copy in this drain must see the row we just wrote, not insert it again
+        drainNetworks.put( bssid, new double[]{ update.time, update.lat, update.lon } );
         
         // to make sure this new network's location is written
         // don't update stack lasttime,lastlat,lastlon variables
       }
       else {
         // ListActivity.info("db using cursor values: " + network.getBssid() );
-        cursor.moveToFirst();
-        lasttime = cursor.getLong(0);
-        lastlat = cursor.getDouble(1);
-        lastlon = cursor.getDouble(2);
-      }
-      try {
-        cursor.close();
-      }
-      catch ( NoSuchElementException ex ) {
-        // weird error cropping up
-        ListActivity.info("the weird close-cursor exception: " + ex );
+        lasttime = (long) dbValues[0];
+        lastlat = dbValues[1];
+        lastlon = dbValues[2];
+        if ( macKey != MacLocationIndex.NO_KEY ) {
+          // remember what the db had, so a network that isn't moving doesn't get selected every scan
+          previousWrittenLocations.put( macKey, lasttime, lastlat, lastlon );
+        }
       }
     }
     
@@ -606,37 +1368,27 @@ public final class DatabaseHelper extends Thread {
       }
     }
     
-    final boolean fastMode = isFastMode();
-    
     final long now = System.currentTimeMillis();
-    final double latDiff = Math.abs(lastlat - location.getLatitude());
-    final double lonDiff = Math.abs(lastlon - location.getLongitude());
-    final boolean smallChange = latDiff > SMALL_LATLON_CHANGE || lonDiff > SMALL_LATLON_CHANGE;
-    final boolean mediumChange = latDiff > MEDIUM_LATLON_CHANGE || lonDiff > MEDIUM_LATLON_CHANGE;
-    final boolean bigChange = latDiff > BIG_LATLON_CHANGE || lonDiff > BIG_LATLON_CHANGE;
-    // ListActivity.info( "lasttime: " + lasttime + " now: " + now + " ssid: " + network.getSsid() 
-    //    + " lastlat: " + lastlat + " lat: " + location.getLatitude() 
-    //    + " lastlon: " + lastlon + " lon: " + location.getLongitude() );
-    final boolean changeWorthy = mediumChange || (now - lasttime > SMALL_LOC_DELAY && smallChange);
     
     if ( ListActivity.DEBUG ) {
       // do lots of inserts when debug is on
       isNew = true;
     }
     
-    final boolean blank = location.getLatitude() == 0 && location.getLongitude() == 0
-        && location.getAltitude() == 0 && location.getAccuracy() == 0
-        && update.level == 0;
-
-    if ( !blank && (isNew || bigChange || (! fastMode && changeWorthy )) ) {
+    if ( ! isBlank( update ) 
+        && (isNew || isWriteWorthy( lasttime, lastlat, lastlon, update, now, fastMode )) ) {
       // ListActivity.info("inserting loc: " + network.getSsid() );
-      insertLocation.bindString( 1, bssid );
+      // the network row is there by now, so this has a key
+      final long key = netKey( bssid, true );
+      insertLocation.bindLong( 1, key );
       insertLocation.bindLong( 2, update.level );  // make sure to use the update's level, network's is mutable...
-      insertLocation.bindDouble( 3, location.getLatitude() );
-      insertLocation.bindDouble( 4, location.getLongitude() );
-      insertLocation.bindDouble( 5, location.getAltitude() );
-      insertLocation.bindDouble( 6, location.getAccuracy() );
-      insertLocation.bindLong( 7, location.getTime() );
+      final long lat = e7( update.lat );
+      final long lon = e7( update.lon );
+      insertLocation.bindLong( 3, lat );
+      insertLocation.bindLong( 4, lon );
+      insertLocation.bindLong( 5, Math.round( update.altitude * 10d ) );
+      insertLocation.bindLong( 6, Math.round( update.accuracy ) );
+      insertLocation.bindLong( 7, update.time );
       if ( db.isDbLockedByOtherThreads() ) {
         // this is kinda lame, make this better
         ListActivity.error( "db locked by another thread, waiting to loc insert. bssid: " + bssid
@@ -649,16 +1401,24 @@ public final class DatabaseHelper extends Thread {
       logTime( start, "db location inserted: " + bssid + " drainSize: " + drainSize );
       
       // update the count
-      locationCount.incrementAndGet();
+      counters.locationAdded();
+      summaries.locationAdded( key, update.level, lat, lon, update.time );
+      touched.add( bssid, network.getSsid(), update.lat, update.lon );
       // update the cache
-      previousWrittenLocationsCache.put( bssid, location );
+      if ( macKey != MacLocationIndex.NO_KEY ) {
+        previousWrittenLocations.put( macKey, update.time, update.lat, update.lon );
+      }
+      else {
+        drainNetworks.put( bssid, new double[]{ update.time, update.lat, update.lon } );
+      }
       
-      if ( ! isNew ) {
+      if ( ! isNew && ! update.skipNetworkUpdate ) {
         // update the network with the lasttime,lastlat,lastlon
-        updateNetwork.bindLong( 1, location.getTime() );
-        updateNetwork.bindDouble( 2, location.getLatitude() );
-        updateNetwork.bindDouble( 3, location.getLongitude() );
-        updateNetwork.bindString( 4, bssid );
+        updateNetwork.bindLong( 1, update.time );
+        updateNetwork.bindLong( 2, lat );
+        updateNetwork.bindLong( 3, lon );
+        updateNetwork.bindLong( 4, GeoCells.cell( lat, lon ) );
+        updateNetwork.bindLong( 5, key );
         if ( db.isDbLockedByOtherThreads() ) {
           // this is kinda lame, make this better
           ListActivity.error( "db locked by another thread, waiting to net update. bssid: " + bssid
@@ -677,6 +1437,35 @@ public final class DatabaseHelper extends Thread {
   }
 
 
+  /**
+   * single network lookup, for anything the drain prefetch didn't cover.
+   * @return { lasttime, lastlat, lastlon }, or NOT_IN_DB
+   */
+  private double[] selectNetwork( final String bssid ) {
+    final long key = netKey( bssid, false );
+    if ( key == MacLocationIndex.NO_KEY ) {
+      return NOT_IN_DB;
+    }
+    final String[] keyArgs = new String[]{ Long.toString( key ) }; 
+    final long start = System.currentTimeMillis();
+    // SELECT: can't precompile, as it has more than 1 result value
+    final Cursor cursor = db.rawQuery("SELECT lasttime,lastlat,lastlon FROM " + NETWORK_V2_TABLE + " WHERE netkey = ?", 
+        keyArgs );
+    logTime( start, "db network queried " + bssid );
+    double[] values = NOT_IN_DB;
+    if ( cursor.moveToFirst() ) {
+      values = new double[]{ cursor.getLong(0), cursor.getLong(1) / E7, cursor.getLong(2) / E7 };
+    }
+    try {
+      cursor.close();
+    }
+    catch ( NoSuchElementException ex ) {
+      // weird error cropping up
+      ListActivity.info("the weird close-cursor exception: " + ex );
+    }
+    return values;
+  }
+
   /* 
    * GPS location interpolation strategy:
    * 
@@ -709,30 +1498,41 @@ public final class DatabaseHelper extends Thread {
    *   (i.e. bad) assumption that we moved from L to F at a constant rate 
    *   and along a linear path, and fill in the blanks.
    * 
+   *   that straight line is only the fallback now. every gps fix also goes into
+   *   a GpsTrack, and a pending observation is placed between the two recorded 
+   *   fixes either side of when it was seen, or dead-reckoned from the speed and
+   *   bearing of the nearest end of the track when it was seen just before the 
+   *   first fix or just after the fix was lost (up to GpsTrack.MAX_EXTRAPOLATE).
+   *   only observations the track can't reach get the L to F line.
+   *
    *   this approach can be improved (perhaps) with inertial data from 
    *   the accelerometer.
    *
-   *   downsides: . this only interpolates, no extrapolation for early 
-   *                observations before a GPS fix, or late observations after
-   *                a loss but before location is found again. it is no more 
-   *                lossy than previous behavior, which discarded these 
-   *                observations entirely.
-   *              . in-memory queue, so we're tossing pending observations if 
-   *                the app lifecycles.
-   *              . still subject to a "hotel-lobby" effect, where you enter and
-   *                exit a large gps-occluded zone via the same door, which 
-   *                degenerates to a point observation.
+   *   downsides: . the track is in memory, so observations left in the pending
+   *                table from a previous run only get the straight line.
+   *              . pending observations carry the fix they were lost at and are
+   *                kept in the pending table, so they survive the app lifecycling
+   *                and any length of outage. ones left over from a previous run
+   *                are interpolated towards the next fix we get.
+   *              . a long gap inside the track (tunnel, parking garage) is still
+   *                a straight line between its ends, and the "hotel-lobby" effect,
+   *                where you enter and exit a large gps-occluded zone via the same
+   *                door, still degenerates to a point observation. the accuracy 
+   *                written grows with the size of the gap, so at least it says so.
    */
 
   /** 
    * mark the last known location where we had a gps fix, when losing it. 
-   * you can call this all the time, or just on transitions.
+   * you can call this all the time, or just on transitions, only the first call for a location counts.
    * call order should be lastLocation() -&gt; 0 or more pendingObservation()  -&gt; recoverLocations()
    * @param loc the location we last saw a gps at, assumed to be "now".
    */
   public void lastLocation( final Location loc ) {
-    lastLoc = loc;
-    lastLocWhen = System.currentTimeMillis();
+    if ( loc != lastLoc ) {
+      lastLoc = loc;
+      lastLocWhen = System.currentTimeMillis();
+      pendingSinceLoss = 0;
+    }
   }
 
   /** 
@@ -746,109 +1546,124 @@ public final class DatabaseHelper extends Thread {
    */
   public boolean pendingObservation( final Network network, final boolean newForRun ) {
     if ( lastLoc != null ) {
-      // modify this to check age at some point on failure. or offer a flush method. or.. something
-      DBPending update = new DBPending( network, network.getLevel(), newForRun );
-      boolean added = pending.offer( update );
-      if ( ! added ) {
-        if ( System.currentTimeMillis() - prevPendingQueueCullTime > QUEUE_CULL_TIMEOUT ) {
-          ListActivity.info("culling pending queue. size: " + pending.size() );
-          // go thru the queue, cull out anything not newForRun
-          for ( Iterator<DBPending> it = pending.iterator(); it.hasNext(); ) {
-            final DBPending val = it.next();
-            if ( ! val.newForRun ) {
-              it.remove();
-            }
-          }
-          ListActivity.info("culled pending queue. size now: " + pending.size() );
-          added = pending.offer( update );
-          if ( ! added ) {
-            ListActivity.info( "pending queue still full, couldn't add: " + network.getBssid() );
-            // go thru the queue, squash dups.
-            HashSet<String> bssids = new HashSet<String>();
-            for ( Iterator<DBPending> it = pending.iterator(); it.hasNext(); ) {
-              final DBPending val = it.next();
-              if ( ! bssids.add( val.network.getBssid() ) ) {
-                it.remove();
-              }
-            }
-            bssids.clear();
-            
-            added = pending.offer( update );
-            if ( ! added ) {
-              ListActivity.info( "pending queue still full post-dup-purge, couldn't add: " + network.getBssid() );
-            }
-          }
-          prevPendingQueueCullTime = System.currentTimeMillis();
-        }
+      final boolean wasEmpty = pending.isEmpty();
+      pending.add( new DBPending( network, network.getLevel(), newForRun, lastLoc, lastLocWhen ) );
+      pendingSinceLoss++;
+      if ( wasEmpty ) {
+        // get the db thread to move it to the table, even if nothing else is coming
+        queue.wake();
       }
-      return added;
+      return true;
     } else {
       return false;
     }
   }
 
   /** 
-   *  walk any pending observations, lerp from last to recover to fill in their location details, add to the real queue.
+   *  hand the fix to the db thread, which walks the pending observations in batches, lerps from last to recover
+   *  to fill in their location details, and writes them.
    *
    * @param loc where we picked up a gps fix again
-   * @return how many locations were recovered.
+   * @return how many pending observations were seen since the fix was lost.
    */
   public int recoverLocations( final Location loc ) {
-    int count = 0;
-    long locWhen = System.currentTimeMillis();
-
-    if ( ( lastLoc != null ) && ( ! pending.isEmpty() ) ) {
-      final float accuracy = loc.distanceTo( lastLoc );
-
-      if ( locWhen <= lastLocWhen ) { // prevent divide by 0
-        locWhen = lastLocWhen + 1;
-      }
-
-      final long d_time = MILLISECONDS.toSeconds( locWhen - lastLocWhen );
-      ListActivity.info( "moved " + accuracy + "m without a GPS fix, over " + d_time + "s" );
-      // walk the locations and 
-      // lerp! y = y0 + (t - t0)((y1-y0)/(t1-t0))
-      // y = y0 + (t - lastLocWhen)((y1-y0)/d_time);
-      final double lat0 = lastLoc.getLatitude();
-      final double lon0 = lastLoc.getLongitude();
-      final double d_lat = loc.getLatitude() - lat0;
-      final double d_lon = loc.getLongitude() - lon0;
-      final double lat_ratio = d_lat/d_time;
-      final double lon_ratio = d_lon/d_time;
-
-      for ( DBPending pend = pending.poll(); pend != null; pend = pending.poll() ) {
-
-        final long tdiff = MILLISECONDS.toSeconds( pend.when - lastLocWhen );
-
-        // do lat lerp:
-        final double lerp_lat = lat0 + ( tdiff * lat_ratio );
-        
-        // do lon lerp
-        final double lerp_lon = lon0 + ( tdiff * lon_ratio );
-
-        Location lerpLoc = new Location( "lerp" );
-        lerpLoc.setLatitude( lerp_lat );
-        lerpLoc.setLongitude( lerp_lon );
-        lerpLoc.setAccuracy( accuracy );
-
-        // pull this once we're happy.
-        //        ListActivity.info( "interpolated to ("+lerp_lat+","+lerp_lon+")" );
-
-        // throw it on the queue!
-        if ( addObservation( pend.network, pend.level, lerpLoc, pend.newForRun ) ) {
-          count++;
-        } else {
-          ListActivity.info( "failed to add "+pend );
-        }
-        // XXX: altitude? worth it?
-      }
-      // return
-      ListActivity.info( "recovered "+count+" location"+(count==1?"":"s")+" with the power of lerp");
+    final int count = pendingSinceLoss;
+    if ( lastLoc != null ) {
+      ListActivity.info( "moved " + loc.distanceTo( lastLoc ) + "m without a GPS fix, over " 
+          + ( ( System.currentTimeMillis() - lastLocWhen ) / 1000L ) + "s, pending: " + count );
+      recoveries.add( new DBRecovery( loc ) );
+      queue.wake();
     }
 
     lastLoc = null;
+    pendingSinceLoss = 0;
     return count;
   }
+  
+  /**
+   * move observations seen without a fix into the pending table.
+   */
+  private void writePending( final List<DBPending> flushing ) {
+    for ( final DBPending pend : flushing ) {
+      final Network network = pend.network;
+      insertPending.bindString( 1, network.getBssid() );
+      insertPending.bindString( 2, network.getSsid() );
+      insertPending.bindLong( 3, network.getFrequency() );
+      insertPending.bindString( 4, network.getCapabilities() );
+      insertPending.bindString( 5, network.getType().getCode() );
+      insertPending.bindLong( 6, pend.level );
+      insertPending.bindLong( 7, pend.newForRun ? 1L : 0L );
+      insertPending.bindLong( 8, pend.when );
+      insertPending.bindDouble( 9, pend.lat0 );
+      insertPending.bindDouble( 10, pend.lon0 );
+      insertPending.bindLong( 11, pend.when0 );
+      insertPending.execute();
+    }
+  }
+  
+  /**
+   * position the next batch of pending rows seen before the recovery fix along the gps track, falling
+   * back to a straight line between the fix each was lost at and the recovery when the track doesn't
+   * reach back that far, and add them to the drain.
+   * @return the highest pending _id used, -1 if there were none
+   */
+  private long recoverPending( final DBRecovery recovery, final List<DBUpdate> drain ) {
+    final String[] args = new String[]{ Long.toString( recovery.when ) };
+    final Cursor cursor = db.rawQuery( "SELECT _id,bssid,ssid,frequency,capabilities,type,level,newforrun,time,"
+        + "lat0,lon0,time0 FROM " + PENDING_TABLE + " WHERE time <= ? ORDER BY _id LIMIT " + RECOVER_BATCH, args );
+    
+    // read the whole batch first, so the track is walked once for all of it
+    long maxId = -1L;
+    int count = 0;
+    while ( cursor.moveToNext() ) {
+      maxId = cursor.getLong(0);
+      final NetworkType type = NetworkType.typeForCode( cursor.getString(5) );
+      final int level = cursor.getInt(6);
+      recoverNetworks[count] = new Network( cursor.getString(1), cursor.getString(2), cursor.getInt(3), 
+          cursor.getString(4), level, type == null ? NetworkType.WIFI : type );
+      recoverLevels[count] = level;
+      recoverNewForRun[count] = cursor.getInt(7) != 0;
+      recoverTimes[count] = cursor.getLong(8);
+      recoverLats[count] = cursor.getDouble(9);
+      recoverLons[count] = cursor.getDouble(10);
+      recoverAnchorTimes[count] = cursor.getLong(11);
+      count++;
+    }
+    cursor.close();
+    
+    final int tracked = gpsTrack.locate( recoverTimes, count, recoverTrackLats, recoverTrackLons, 
+        recoverAccuracies, recoverLocated );
+    
+    final double lat1 = recovery.location.getLatitude();
+    final double lon1 = recovery.location.getLongitude();
+    for ( int i = 0; i < count; i++ ) {
+      double lat = recoverTrackLats[i];
+      double lon = recoverTrackLons[i];
+      float accuracy = recoverAccuracies[i];
+      if ( ! recoverLocated[i] ) {
+        // lerp! y = y0 + (t - t0)((y1-y0)/(t1-t0))
+        final double lat0 = recoverLats[i];
+        final double lon0 = recoverLons[i];
+        final long when0 = recoverAnchorTimes[i];
+        double fraction = 1d;
+        if ( recovery.when > when0 ) {
+          fraction = Math.max( 0d, Math.min( 1d, (double) ( recoverTimes[i] - when0 ) / ( recovery.when - when0 ) ) );
+        }
+        Location.distanceBetween( lat0, lon0, lat1, lon1, recoverDistance );
+        lat = lat0 + ( fraction * ( lat1 - lat0 ) );
+        lon = lon0 + ( fraction * ( lon1 - lon0 ) );
+        accuracy = recoverDistance[0];
+      }
+      // XXX: altitude? worth it?
+      drain.add( new DBUpdate( recoverNetworks[i], recoverLevels[i], recoverTimes[i], lat, lon, 0d, accuracy,
+          recoverNewForRun[i] ) );
+      recoverNetworks[i] = null;
+    }
+    if ( count > 0 ) {
+      ListActivity.info( "recovered " + count + " pending, on gps track: " + tracked );
+    }
+    return maxId;
+  }
 
   private void logTime( final long start, final String string ) {
     long diff = System.currentTimeMillis() - start;
@@ -859,8 +1674,8 @@ public final class DatabaseHelper extends Thread {
   
   public boolean isFastMode() {
     boolean fastMode = false;
-    if ( (queue.size() * 100) / MAX_QUEUE > 75 ) {
-      // queue is filling up, go to fast mode, only write new networks or big changes
+    if ( queue.getRefreshPercent() > 75 ) {
+      // refresh lane is filling up, go to fast mode, only write new networks or big changes
       fastMode = true;
     }
     return fastMode;
@@ -882,29 +1697,72 @@ public final class DatabaseHelper extends Thread {
     return newCellCount.get();
   }
   
+  /**
+   * @return repeat sightings folded out of drains before they hit the db
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+  
   public long getNetworkCount() {
-    return networkCount.get();
+    return counters.getNetworkCount();
   }
   
-  private void getNetworkCountFromDB() throws DBException {
-    networkCount.set( getCountFromDB( NETWORK_TABLE ) );
+  public long getNetworkCount( final NetworkType type ) {
+    return counters.getNetworkCount( type );
   }
   
-//  private long getNetworkCountFromDB(NetworkType type) {
-//    return getCountFromDB( NETWORK_TABLE + " WHERE type = '" + type.getCode() + "'" );
-//  }
+  /**
+   * @param crypto one of Network.CRYPTO_*
+   * @return how many wifi networks in the db have it
+   */
+  public long getCryptoCount( final int crypto ) {
+    return counters.getCryptoCount( crypto );
+  }
+  
+  /**
+   * the last-written-location index, for its hit/miss/eviction counts. 
+   * every miss on a wifi network is a select against the network table.
+   */
+  public MacLocationIndex getLocationIndex() {
+    return previousWrittenLocations;
+  }
   
   public long getLocationCount() {
-    return locationCount.get();
+    return counters.getLocationCount();
+  }
+  
+  /**
+   * @return true while v1 locations are still being moved into location2, only the views see them all
+   */
+  public boolean isLocationsMigrating() {
+    return locationsMigrating;
+  }
+  
+  /**
+   * @return the key network2, location2 and the summaries know a network by, or MacLocationIndex.NO_KEY 
+   *  for a cell id that isn't in the db
+   */
+  public long getNetKey( final String bssid ) {
+    return netKey( bssid, false );
+  }
+  
+  /**
+   * @return true if ssid searches can use SsidIndex.searchSql, false while it's still being backfilled
+   */
+  public boolean isSsidIndexReady() {
+    return ssidIndex.isReady();
   }
   
-  private void getLocationCountFromDB() throws DBException {
+  private void getMaxLocationIdFromDB() throws DBException {
     long start = System.currentTimeMillis();
-    final long count = getMaxIdFromDB( LOCATION_TABLE );
+    long maxId = getMaxIdFromDB( LOCATION_V2_TABLE );
+    if ( locationsMigrating ) {
+      maxId = Math.max( maxId, getMaxIdFromDB( LOCATION_V1_TABLE ) );
+    }
     long end = System.currentTimeMillis();
-    ListActivity.info( "loc count: " + count + " in: " + (end-start) + "ms" );
-    locationCount.set( count );
-    setupMaxidDebug( count );
+    ListActivity.info( "loc max id: " + maxId + " in: " + (end-start) + "ms" );
+    setupMaxidDebug( maxId );
   }
   
   private void setupMaxidDebug( final long locCount ) {
@@ -924,15 +1782,6 @@ public final class DatabaseHelper extends Thread {
     edit.commit();
   }
   
-  private long getCountFromDB( final String table ) throws DBException {
-    checkDB();
-    final Cursor cursor = db.rawQuery( "select count(*) FROM " + table, null );
-    cursor.moveToFirst();
-    final long count = cursor.getLong( 0 );
-    cursor.close();
-    return count;
-  }
-  
   private long getMaxIdFromDB( final String table ) throws DBException {
     checkDB();
     final Cursor cursor = db.rawQuery( "select MAX(_id) FROM " + table, null );
@@ -946,33 +1795,55 @@ public final class DatabaseHelper extends Thread {
     // check cache
     Network retval = ListActivity.getNetworkCache().get( bssid );
     if ( retval == null ) {
+      retval = queryCache.getNetwork( bssid );
+    }
+    if ( retval == null ) {
+      final Object token = queryCache.beginNetwork( bssid );
       try {
         checkDB();
-        final String[] args = new String[]{ bssid };
-        final Cursor cursor = db.rawQuery("select ssid,frequency,capabilities,type,lastlat,lastlon FROM " + NETWORK_TABLE 
-            + " WHERE bssid = ?", args);
+        final String[] args = new String[]{ Long.toString( netKey( bssid, false ) ) };
+        final Cursor cursor = db.rawQuery( "SELECT " + networkColumns( "" ) + " FROM " 
+            + NETWORK_V2_TABLE + " WHERE netkey = ?", args );
         if ( cursor.getCount() > 0 ) {
           cursor.moveToFirst();
-          final String ssid = cursor.getString(0);
-          final int frequency = cursor.getInt(1);
-          final String capabilities = cursor.getString(2);
-          final float lastlat = cursor.getFloat(4);
-          final float lastlon = cursor.getFloat(5);
-          
-          final NetworkType type = NetworkType.typeForCode( cursor.getString(3) );
-          retval = new Network( bssid, ssid, frequency, capabilities, 0, type );
-          retval.setGeoPoint( new GeoPoint(lastlat, lastlon) );
+          retval = networkFromCursor( cursor );
           ListActivity.getNetworkCache().put( bssid, retval );
+          queryCache.putNetwork( bssid, token, retval );
         }
         cursor.close();
       }
       catch (DBException ex ) {
         deathDialog( "getNetwork", ex );
       }
+      finally {
+        // not there, or the query failed
+        queryCache.abandonNetwork( bssid, token );
+      }
     }
     return retval;
   }
   
+  /**
+   * the network2 columns networkFromCursor builds a network from, positions decoded.
+   * @param prefix the table alias and a dot, or ""
+   */
+  public static String networkColumns( final String prefix ) {
+    return prefix + "bssid," + prefix + "ssid," + prefix + "frequency," + prefix + "capabilities," 
+      + prefix + "type," + prefix + "lastlat / 10000000.0," + prefix + "lastlon / 10000000.0";
+  }
+  
+  /**
+   * @param cursor on a row starting with networkColumns
+   * @return the network, at its last position, with no level. any thread, nothing is cached
+   */
+  public static Network networkFromCursor( final Cursor cursor ) {
+    final NetworkType type = NetworkType.typeForCode( cursor.getString(4) );
+    final Network network = new Network( cursor.getString(0), cursor.getString(1), cursor.getInt(2), 
+        cursor.getString(3), 0, type );
+    network.setGeoPoint( new GeoPoint( cursor.getDouble(5), cursor.getDouble(6) ) );
+    return network;
+  }
+  
   public Cursor locationIterator( final long fromId ) throws DBException {
     checkDB();
     ListActivity.info( "locationIterator fromId: " + fromId );
@@ -980,6 +1851,52 @@ public final class DatabaseHelper extends Thread {
     return db.rawQuery( "SELECT _id,bssid,level,lat,lon,altitude,accuracy,time FROM location WHERE _id > ?", args );
   }
   
+  /**
+   * a page of the locations after afterId, in _id order, with their network alongside, for writing out without
+   * looking each network up: _id,bssid,level,lat,lon,altitude,accuracy,time,ssid,capabilities,frequency,type.
+   * locations missing their network are left out. each page is read front to back by _id, with one key 
+   * lookup of the network per row.
+   * @param v1 the locations still in location_v1 instead of location2
+   * @return the page, or null for v1 once there aren't any left to migrate
+   */
+  public Cursor exportPage( final boolean v1, final long afterId, final int limit ) throws DBException {
+    checkDB();
+    final String[] args = new String[]{ Long.toString( afterId ) };
+    if ( ! v1 ) {
+      return db.rawQuery( EXPORT_SQL + " ORDER BY l._id LIMIT " + limit, args );
+    }
+    // the migration drops the table when it's done, so the page is read before letting it
+    synchronized( TRANS_LOCK ) {
+      if ( ! locationsMigrating ) {
+        return null;
+      }
+      final Cursor cursor = db.rawQuery( EXPORT_V1_SQL + " ORDER BY l._id LIMIT " + limit, args );
+      cursor.getCount();
+      return cursor;
+    }
+  }
+  
+  /**
+   * exportPage's rows for fromId &lt; _id &lt;= toId, in _id order, on a connection of the caller's. 
+   * location2 only, not while isLocationsMigrating.
+   * @param reader from openReader, or getDB
+   */
+  public static Cursor exportRange( final SQLiteDatabase reader, final long fromId, final long toId ) {
+    return reader.rawQuery( EXPORT_SQL + " AND l._id <= ?", 
+        new String[]{ Long.toString( fromId ), Long.toString( toId ) } );
+  }
+  
+  /**
+   * @return the highest location _id in the db, 0 if there are none
+   */
+  public long getMaxLocationId() throws DBException {
+    long maxId = getMaxIdFromDB( LOCATION_V2_TABLE );
+    if ( locationsMigrating ) {
+      maxId = Math.max( maxId, getMaxIdFromDB( LOCATION_V1_TABLE ) );
+    }
+    return maxId;
+  }
+  
   public Cursor networkIterator() throws DBException {
     checkDB();
     ListActivity.info( "networkIterator" );
@@ -989,9 +1906,9 @@ public final class DatabaseHelper extends Thread {
   
   public Cursor getSingleNetwork( final String bssid ) throws DBException {
     checkDB();
-    final String[] args = new String[]{bssid};
-    return db.rawQuery( 
-        "SELECT bssid,ssid,frequency,capabilities,lasttime,lastlat,lastlon FROM network WHERE bssid = ?", args );
+    final String[] args = new String[]{ Long.toString( netKey( bssid, false ) ) };
+    return db.rawQuery( "SELECT bssid,ssid,frequency,capabilities,lasttime,lastlat / 10000000.0,lastlon / 10000000.0"
+        + " FROM " + NETWORK_V2_TABLE + " WHERE netkey = ?", args );
   }
   
 
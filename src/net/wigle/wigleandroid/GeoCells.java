@@ -0,0 +1,99 @@
+package net.wigle.wigleandroid;
+
+/**
+ * a fixed lat/lon grid for indexing network positions. each network2 row keeps the number of the cell
+ * its last position falls in, with a b-tree index on it, so "what's near here" looks up the cells
+ * around a point instead of scanning every network. old sqlite has no r-tree, this needs nothing but
+ * an integer column.
+ *
+ * cells are CELL_E7 on a side (0.005 degrees, about 550m north-south), numbered row by row from
+ * (-90,-180): cell = latIndex * LON_CELLS + lonIndex.
+ *
+ * a nearest-neighbour search walks rings of cells outward from the point's cell: ring r is the edge of
+ * the (2r+1) cell square around it. once the k-th best distance found so far is within coveredMeters of
+ * the rings walked, nothing further out can beat it.
+ */
+public final class GeoCells {
+  /** cell size, in 1e7 scaled degrees */
+  public static final long CELL_E7 = 50000L;
+  public static final long LAT_CELLS = 1800000000L / CELL_E7;
+  public static final long LON_CELLS = 3600000000L / CELL_E7;
+  /** 
+   * furthest ring a search walks, 0.1 degrees out. its 8 * MAX_RING cells stay well under sqlite's 999 binds
+   */
+  public static final int MAX_RING = 20;
+
+  // mean earth radius, meters
+  private static final double EARTH_RADIUS = 6371009d;
+  private static final double METERS_PER_DEGREE = ( Math.PI / 180d ) * EARTH_RADIUS;
+  private static final double CELL_DEGREES = CELL_E7 / 1e7d;
+
+  private GeoCells() {
+  }
+
+  /**
+   * @return the cell for a 1e7 scaled position
+   */
+  public static long cell( final long latE7, final long lonE7 ) {
+    return ( latIndex( latE7 ) * LON_CELLS ) + lonIndex( lonE7 );
+  }
+
+  /**
+   * the same as cell(), in sql, for filling in rows that don't have one.
+   * @param latColumn 1e7 scaled integer column
+   * @param lonColumn 1e7 scaled integer column
+   */
+  public static String cellSql( final String latColumn, final String lonColumn ) {
+    // integers, so / truncates, and the offsets keep it non-negative so that's floor
+    return "((min(max(" + latColumn + ",-900000000),899999999) + 900000000) / " + CELL_E7 + ") * " + LON_CELLS
+      + " + ((min(max(" + lonColumn + ",-1800000000),1799999999) + 1800000000) / " + CELL_E7 + ")";
+  }
+
+  /**
+   * the cells on ring around a point. wraps around at the date line, stops at the poles.
+   * @param out filled with the cells, needs room for 8 * ring (1 for ring 0)
+   * @return how many cells were filled in
+   */
+  public static int ringCells( final double lat, final double lon, final int ring, final long[] out ) {
+    final long latIndex = latIndex( Math.round( lat * 1e7d ) );
+    final long lonIndex = lonIndex( Math.round( lon * 1e7d ) );
+    int count = 0;
+    for ( int dy = -ring; dy <= ring; dy++ ) {
+      final long row = latIndex + dy;
+      if ( row < 0 || row >= LAT_CELLS ) {
+        continue;
+      }
+      final boolean edge = dy == -ring || dy == ring;
+      // the whole row on the top and bottom edges, just the two ends on the sides
+      final int step = edge ? 1 : Math.max( 1, 2 * ring );
+      for ( int dx = -ring; dx <= ring; dx += step ) {
+        final long column = ( ( lonIndex + dx ) % LON_CELLS + LON_CELLS ) % LON_CELLS;
+        out[count++] = ( row * LON_CELLS ) + column;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return how far from the point, at least, anything outside rings 0 through ring is
+   */
+  public static double coveredMeters( final double lat, final int ring ) {
+    // the point can be anywhere in its cell, so only ring whole cells are sure to be between it and the
+    // outside. longitude cells are narrowest on the poleward edge of the square
+    final double edgeLat = Math.min( 90d, Math.abs( lat ) + ( ( ring + 1 ) * CELL_DEGREES ) );
+    final double degrees = ring * CELL_DEGREES;
+    final double north = degrees * METERS_PER_DEGREE;
+    final double east = degrees * METERS_PER_DEGREE * Math.cos( Math.toRadians( edgeLat ) );
+    return Math.min( north, east );
+  }
+
+  private static long latIndex( final long latE7 ) {
+    final long clamped = Math.min( Math.max( latE7, -900000000L ), 899999999L );
+    return ( clamped + 900000000L ) / CELL_E7;
+  }
+
+  private static long lonIndex( final long lonE7 ) {
+    final long clamped = Math.min( Math.max( lonE7, -1800000000L ), 1799999999L );
+    return ( clamped + 1800000000L ) / CELL_E7;
+  }
+}
@@ -0,0 +1,201 @@
+package net.wigle.wigleandroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.location.Location;
+
+/**
+ * the k things nearest a point, fed one at a time. a bounded max-heap on primitive distances, so the
+ * furthest kept is at the top and a new one either replaces it or is dropped, with no boxing and no
+ * trouble with two at the same distance.
+ *
+ * Location.distanceBetween is ellipsoidal and slow, so each offer first gets a flat-earth estimate, and
+ * only one that could beat the furthest kept gets the exact distance. once full, the furthest kept is the
+ * radius anything new has to be inside, and it only shrinks, for callers walking outward to know when
+ * they can stop.
+ *
+ * not thread safe, feed it from one thread at a time.
+ */
+public final class GeoTopK<T> {
+  // mean earth radius, meters
+  private static final double EARTH_RADIUS = 6371009d;
+  private static final double METERS_PER_DEGREE = ( Math.PI / 180d ) * EARTH_RADIUS;
+  /**
+   * how far under the exact distance the estimate can be. flat-earth is within a fraction of a percent
+   * over the few km a search covers, and the ellipsoid differs from the sphere by under half a percent
+   */
+  private static final double ESTIMATE_SLACK = 0.98d;
+
+  private final int k;
+  private final double lat;
+  private final double lon;
+  private final double metersPerLonDegree;
+  /** a max-heap on meters, items alongside */
+  private final float[] meters;
+  private final Object[] items;
+  private int size = 0;
+  /** the estimate has to be under this to be worth an exact distance, squared, shrinks as the heap does */
+  private double cutoffSquared = Double.MAX_VALUE;
+  private final float[] results = new float[1];
+  private long estimated = 0L;
+  private long measured = 0L;
+
+  /**
+   * @param k how many to keep, at least one
+   */
+  public GeoTopK( final int k, final double lat, final double lon ) {
+    this.k = Math.max( 1, k );
+    this.lat = lat;
+    this.lon = lon;
+    metersPerLonDegree = METERS_PER_DEGREE * Math.cos( Math.toRadians( lat ) );
+    meters = new float[this.k];
+    items = new Object[this.k];
+  }
+
+  /**
+   * @return true if it's one of the k nearest so far
+   */
+  public boolean offer( final double itemLat, final double itemLon, final T item ) {
+    final float distance = distanceIfNearer( itemLat, itemLon );
+    return distance >= 0f && offer( distance, item );
+  }
+
+  /**
+   * for items that cost something to make, measure first and only make the ones that'll be kept.
+   * @return meters to the position if it could be one of the k nearest, for offer, or -1 if it can't
+   */
+  public float distanceIfNearer( final double itemLat, final double itemLon ) {
+    estimated++;
+    if ( size == k ) {
+      final double north = ( itemLat - lat ) * METERS_PER_DEGREE;
+      double dLon = Math.abs( itemLon - lon );
+      if ( dLon > 180d ) {
+        dLon = 360d - dLon;
+      }
+      final double east = dLon * metersPerLonDegree;
+      if ( ( north * north ) + ( east * east ) >= cutoffSquared ) {
+        return -1f;
+      }
+    }
+    measured++;
+    Location.distanceBetween( lat, lon, itemLat, itemLon, results );
+    return size < k || results[0] < meters[0] ? results[0] : -1f;
+  }
+
+  /**
+   * @param distance already known, in meters
+   * @return true if it's one of the k nearest so far
+   */
+  public boolean offer( final float distance, final T item ) {
+    if ( size < k ) {
+      meters[size] = distance;
+      items[size] = item;
+      siftUp( size );
+      size++;
+    }
+    else if ( distance < meters[0] ) {
+      meters[0] = distance;
+      items[0] = item;
+      siftDown( 0 );
+    }
+    else {
+      return false;
+    }
+    if ( size == k ) {
+      final double cutoff = meters[0] / ESTIMATE_SLACK;
+      cutoffSquared = cutoff * cutoff;
+    }
+    return true;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isFull() {
+    return size == k;
+  }
+
+  /**
+   * @return meters to the furthest kept once full, nothing outside it can get in. Float.MAX_VALUE until then
+   */
+  public float getRadius() {
+    return size == k ? meters[0] : Float.MAX_VALUE;
+  }
+
+  /**
+   * @return what's kept, nearest first. leaves the heap as it was
+   */
+  @SuppressWarnings("unchecked")
+  public List<T> getSorted() {
+    final float[] sortMeters = new float[size];
+    final Object[] sortItems = new Object[size];
+    System.arraycopy( meters, 0, sortMeters, 0, size );
+    System.arraycopy( items, 0, sortItems, 0, size );
+    // heap sort, popping the furthest to the end
+    for ( int end = size - 1; end > 0; end-- ) {
+      swap( sortMeters, sortItems, 0, end );
+      siftDown( sortMeters, sortItems, 0, end );
+    }
+    final List<T> sorted = new ArrayList<T>( size );
+    for ( int i = 0; i < size; i++ ) {
+      sorted.add( (T) sortItems[i] );
+    }
+    return sorted;
+  }
+
+  public void clear() {
+    for ( int i = 0; i < size; i++ ) {
+      items[i] = null;
+    }
+    size = 0;
+    cutoffSquared = Double.MAX_VALUE;
+  }
+
+  @Override
+  public String toString() {
+    return "GeoTopK: k: " + k + " size: " + size + " radius: " + getRadius()
+      + " offered: " + estimated + " measured: " + measured;
+  }
+
+  private void siftUp( int index ) {
+    while ( index > 0 ) {
+      final int parent = ( index - 1 ) >> 1;
+      if ( meters[parent] >= meters[index] ) {
+        break;
+      }
+      swap( meters, items, parent, index );
+      index = parent;
+    }
+  }
+
+  private void siftDown( final int index ) {
+    siftDown( meters, items, index, size );
+  }
+
+  private static void siftDown( final float[] meters, final Object[] items, int index, final int size ) {
+    while ( true ) {
+      final int left = ( index << 1 ) + 1;
+      if ( left >= size ) {
+        break;
+      }
+      final int right = left + 1;
+      final int larger = right < size && meters[right] > meters[left] ? right : left;
+      if ( meters[index] >= meters[larger] ) {
+        break;
+      }
+      swap( meters, items, index, larger );
+      index = larger;
+    }
+  }
+
+  private static void swap( final float[] meters, final Object[] items, final int a, final int b ) {
+    final float tempMeters = meters[a];
+    meters[a] = meters[b];
+    meters[b] = tempMeters;
+    final Object tempItem = items[a];
+    items[a] = items[b];
+    items[b] = tempItem;
+  }
+}
@@ -0,0 +1,200 @@
+package net.wigle.wigleandroid;
+
+/**
+ * ring of the most recent gps fixes, (time, lat, lon, accuracy, speed, bearing) in primitive arrays, for
+ * putting observations seen without a fix back on the road we actually drove instead of a straight line
+ * between where the fix was lost and where it came back.
+ *
+ * times are System.currentTimeMillis() when the fix arrived, not the gps time, so they line up with
+ * when observations were seen. fixes are expected in time order, older ones are ignored.
+ *
+ * add is called from the gps listener, locate from the db thread, so both are synchronized.
+ */
+public final class GpsTrack {
+  /** how far past either end of the track we'll dead-reckon */
+  public static final long MAX_EXTRAPOLATE = 60000L;
+
+  // mean earth radius, meters
+  private static final double EARTH_RADIUS = 6371009d;
+  private static final double METERS_PER_DEGREE = ( Math.PI / 180d ) * EARTH_RADIUS;
+
+  private final long[] times;
+  private final double[] lats;
+  private final double[] lons;
+  private final float[] accuracies;
+  /** meters per second, NaN if the fix didn't have one */
+  private final float[] speeds;
+  /** degrees east of true north, NaN if the fix didn't have one */
+  private final float[] bearings;
+  private final int capacity;
+
+  /** index of the oldest fix */
+  private int head = 0;
+  private int size = 0;
+
+  public GpsTrack( final int capacity ) {
+    this.capacity = capacity;
+    times = new long[capacity];
+    lats = new double[capacity];
+    lons = new double[capacity];
+    accuracies = new float[capacity];
+    speeds = new float[capacity];
+    bearings = new float[capacity];
+  }
+
+  /**
+   * record a fix, overwriting the oldest one once full.
+   * @param speed meters per second, or NaN if unknown
+   * @param bearing degrees, or NaN if unknown
+   */
+  public synchronized void add( final long time, final double lat, final double lon, final float accuracy,
+      final float speed, final float bearing ) {
+
+    if ( size > 0 && time <= times[slot( size - 1 )] ) {
+      // out of order or a repeat, keep the track sorted
+      return;
+    }
+    final int slot;
+    if ( size < capacity ) {
+      slot = slot( size );
+      size++;
+    }
+    else {
+      slot = head;
+      head = ( head + 1 ) % capacity;
+    }
+    times[slot] = time;
+    lats[slot] = lat;
+    lons[slot] = lon;
+    accuracies[slot] = accuracy;
+    speeds[slot] = speed;
+    bearings[slot] = bearing;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized void clear() {
+    head = 0;
+    size = 0;
+  }
+
+  /**
+   * position a batch of times along the track: interpolated between the fixes either side, or dead-reckoned
+   * from the speed and bearing at the nearest end when within MAX_EXTRAPOLATE of it.
+   * @param when times to position, any order
+   * @param count how many of when to use
+   * @param lat filled in for each located time
+   * @param lon filled in for each located time
+   * @param accuracy filled in for each located time, in meters, grows with how far it is from a real fix
+   * @param located set true for the times the track could place, false for the rest
+   * @return how many were located
+   */
+  public synchronized int locate( final long[] when, final int count, final double[] lat, final double[] lon,
+      final float[] accuracy, final boolean[] located ) {
+
+    int found = 0;
+    for ( int i = 0; i < count; i++ ) {
+      located[i] = size > 0 && locate( when[i], lat, lon, accuracy, i );
+      if ( located[i] ) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  private boolean locate( final long time, final double[] lat, final double[] lon, final float[] accuracy,
+      final int out ) {
+
+    // last fix at or before time
+    int low = 0;
+    int high = size - 1;
+    while ( low <= high ) {
+      final int mid = ( low + high ) >>> 1;
+      if ( times[slot( mid )] <= time ) {
+        low = mid + 1;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    final int before = high;
+
+    if ( before < 0 ) {
+      // ahead of the track, back up from the first fix
+      return extrapolate( 0, time, lat, lon, accuracy, out );
+    }
+    final int b = slot( before );
+    if ( before == size - 1 || times[b] == time ) {
+      // past the end of the track, carry on from the last fix
+      return extrapolate( before, time, lat, lon, accuracy, out );
+    }
+
+    final int a = slot( before + 1 );
+    final double fraction = (double) ( time - times[b] ) / ( times[a] - times[b] );
+    lat[out] = lats[b] + ( fraction * ( lats[a] - lats[b] ) );
+    lon[out] = lons[b] + ( fraction * ( lons[a] - lons[b] ) );
+    // the fixes themselves are only so good, and the further into a gap the less we know
+    final double gap = distance( lats[b], lons[b], lats[a], lons[a] );
+    accuracy[out] = (float) ( Math.max( accuracies[b], accuracies[a] ) + ( gap * Math.min( fraction, 1d - fraction ) ) );
+    return true;
+  }
+
+  /**
+   * dead reckon from fix index, forwards or backwards in time
+   */
+  private boolean extrapolate( final int index, final long time, final double[] lat, final double[] lon,
+      final float[] accuracy, final int out ) {
+
+    final int s = slot( index );
+    final long dt = time - times[s];
+    if ( Math.abs( dt ) > MAX_EXTRAPOLATE ) {
+      return false;
+    }
+
+    float speed = speeds[s];
+    float bearing = bearings[s];
+    if ( ( Float.isNaN( speed ) || Float.isNaN( bearing ) ) && size > 1 ) {
+      // work them out from the neighbouring fix
+      final int other = slot( index == 0 ? 1 : index - 1 );
+      final int from = index == 0 ? s : other;
+      final int to = index == 0 ? other : s;
+      final double meters = distance( lats[from], lons[from], lats[to], lons[to] );
+      speed = (float) ( meters * 1000d / ( times[to] - times[from] ) );
+      bearing = (float) Math.toDegrees( Math.atan2( ( lons[to] - lons[from] ) * Math.cos( Math.toRadians( lats[from] ) ),
+          lats[to] - lats[from] ) );
+    }
+
+    double meters = 0d;
+    if ( ! Float.isNaN( speed ) && ! Float.isNaN( bearing ) ) {
+      // negative going back in time
+      meters = speed * ( dt / 1000d );
+      final double radians = Math.toRadians( bearing );
+      final double degrees = meters / METERS_PER_DEGREE;
+      lat[out] = lats[s] + ( degrees * Math.cos( radians ) );
+      lon[out] = lons[s] + ( degrees * Math.sin( radians ) / Math.max( 0.01d, Math.cos( Math.toRadians( lats[s] ) ) ) );
+    }
+    else {
+      // nothing to go on, stay put
+      lat[out] = lats[s];
+      lon[out] = lons[s];
+    }
+    // anything could have happened since, count the whole distance against it
+    accuracy[out] = (float) ( accuracies[s] + Math.abs( meters ) );
+    return true;
+  }
+
+  private int slot( final int index ) {
+    return ( head + index ) % capacity;
+  }
+
+  /**
+   * equirectangular approximation, plenty good over the distance between two fixes
+   */
+  private static double distance( final double lat1, final double lon1, final double lat2, final double lon2 ) {
+    final double x = ( lon2 - lon1 ) * Math.cos( Math.toRadians( ( lat1 + lat2 ) / 2d ) );
+    final double y = lat2 - lat1;
+    return Math.sqrt( ( x * x ) + ( y * y ) ) * METERS_PER_DEGREE;
+  }
+}
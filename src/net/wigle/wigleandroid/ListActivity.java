@@ -131,6 +131,7 @@ public final class ListActivity extends Activity implements FileUploaderListener
     public static final String PREF_BE_ANONYMOUS = "beAnonymous";
     public static final String PREF_DONATE = "donate";
     public static final String PREF_DB_MARKER = "dbMarker";
+    public static final String PREF_DB_COMMIT_LATENCY = "dbCommitLatency";
     public static final String PREF_MAX_DB = "maxDbMarker";
     public static final String PREF_NETS_UPLOADED = "netsUploaded";
     public static final String PREF_SCAN_PERIOD_STILL = "scanPeriodStill";
@@ -1300,6 +1301,8 @@ public final class ListActivity extends Activity implements FileUploaderListener
       info( "upload file" );
       // actually need this Activity context, for dialogs
       state.fileUploaderTask = new FileUploaderTask( this, dbHelper, this, false );
+      // keep a copy on the sd card like before, internal storage isn't worth filling
+      state.fileUploaderTask.setStreamUpload( hasSD() );
       state.fileUploaderTask.start();
     }
     
@@ -0,0 +1,216 @@
+package net.wigle.wigleandroid;
+
+import java.util.Arrays;
+
+/**
+ * last-written location per bssid, for deciding if an observation is worth writing without asking the db.
+ * bssids are packed into a long and the values live in parallel primitive arrays (open addressing, linear
+ * probing), so hundreds of thousands of networks fit without boxing or holding on to Location objects.
+ * lat/lon are kept as 1e7 scaled ints and time as seconds, which is plenty for the change thresholds.
+ *
+ * not thread-safe, only touched from the db writer thread. counters can be read from anywhere.
+ */
+public final class MacLocationIndex {
+  /** returned by toKey for bssids that aren't macs (cell towers) */
+  public static final long NO_KEY = -1L;
+
+  private static final long EMPTY = -1L;
+  private static final double SCALE = 1e7d;
+
+  private final long[] keys;
+  private final int[] times;
+  private final int[] lats;
+  private final int[] lons;
+  private final int mask;
+  private final int maxSize;
+
+  private int size = 0;
+  private int evictHand = 0;
+
+  private volatile long hits = 0L;
+  private volatile long misses = 0L;
+  private volatile long evictions = 0L;
+
+  /**
+   * @param capacity number of slots, rounded up to a power of two. holds up to 3/4 of that before evicting.
+   */
+  public MacLocationIndex( final int capacity ) {
+    int slots = 16;
+    while ( slots < capacity ) {
+      slots <<= 1;
+    }
+    keys = new long[slots];
+    Arrays.fill( keys, EMPTY );
+    times = new int[slots];
+    lats = new int[slots];
+    lons = new int[slots];
+    mask = slots - 1;
+    maxSize = ( slots / 4 ) * 3;
+  }
+
+  /**
+   * pack a "xx:xx:xx:xx:xx:xx" bssid into the low 48 bits of a long.
+   * @param bssid the bssid, either case
+   * @return the packed mac, or NO_KEY if this doesn't look like a mac
+   */
+  public static long toKey( final String bssid ) {
+    if ( bssid == null || bssid.length() != 17 ) {
+      return NO_KEY;
+    }
+    long key = 0L;
+    for ( int i = 0; i < 17; i++ ) {
+      final char c = bssid.charAt( i );
+      if ( i % 3 == 2 ) {
+        if ( c != ':' ) {
+          return NO_KEY;
+        }
+        continue;
+      }
+      final int digit = Character.digit( c, 16 );
+      if ( digit < 0 ) {
+        return NO_KEY;
+      }
+      key = ( key << 4 ) | digit;
+    }
+    return key;
+  }
+
+  /**
+   * look up the last written values for a key.
+   * @param key from toKey
+   * @param out filled with { lasttime millis, lastlat, lastlon } on a hit
+   * @return true on a hit
+   */
+  public boolean get( final long key, final double[] out ) {
+    final boolean hit = peek( key, out );
+    if ( hit ) {
+      hits++;
+    }
+    else {
+      misses++;
+    }
+    return hit;
+  }
+
+  /**
+   * get without touching the hit/miss counts, for looking ahead.
+   */
+  public boolean peek( final long key, final double[] out ) {
+    final int slot = find( key );
+    if ( slot < 0 ) {
+      return false;
+    }
+    out[0] = times[slot] * 1000L;
+    out[1] = lats[slot] / SCALE;
+    out[2] = lons[slot] / SCALE;
+    return true;
+  }
+
+  /**
+   * check for a key without touching the hit/miss counts.
+   */
+  public boolean contains( final long key ) {
+    return find( key ) >= 0;
+  }
+
+  /**
+   * record the last written values for a key, evicting something if full.
+   */
+  public void put( final long key, final long time, final double lat, final double lon ) {
+    int slot = find( key );
+    if ( slot < 0 ) {
+      if ( size >= maxSize ) {
+        evictOne();
+      }
+      slot = hash( key ) & mask;
+      while ( keys[slot] != EMPTY ) {
+        slot = ( slot + 1 ) & mask;
+      }
+      keys[slot] = key;
+      size++;
+    }
+    times[slot] = (int) ( time / 1000L );
+    lats[slot] = (int) Math.round( lat * SCALE );
+    lons[slot] = (int) Math.round( lon * SCALE );
+  }
+
+  public void clear() {
+    Arrays.fill( keys, EMPTY );
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getEvictions() {
+    return evictions;
+  }
+
+  @Override
+  public String toString() {
+    return "MacLocationIndex: size: " + size + " hits: " + hits + " misses: " + misses
+      + " evictions: " + evictions;
+  }
+
+  private int find( final long key ) {
+    int slot = hash( key ) & mask;
+    while ( true ) {
+      final long current = keys[slot];
+      if ( current == key ) {
+        return slot;
+      }
+      if ( current == EMPTY ) {
+        return -1;
+      }
+      slot = ( slot + 1 ) & mask;
+    }
+  }
+
+  /**
+   * drop whatever entry the clock hand lands on next. not lru, but cheap, and anything evicted
+   * just costs one select the next time it's seen.
+   */
+  private void evictOne() {
+    while ( keys[evictHand] == EMPTY ) {
+      evictHand = ( evictHand + 1 ) & mask;
+    }
+    remove( evictHand );
+    evictHand = ( evictHand + 1 ) & mask;
+    evictions++;
+  }
+
+  /** backward-shift delete, keeps probe chains intact without tombstones */
+  private void remove( int slot ) {
+    int next = ( slot + 1 ) & mask;
+    while ( keys[next] != EMPTY ) {
+      final int home = hash( keys[next] ) & mask;
+      // move next into the hole if its home isn't cyclically in (slot, next]
+      final boolean movable = ( slot <= next ) ? ( home <= slot || home > next ) : ( home <= slot && home > next );
+      if ( movable ) {
+        keys[slot] = keys[next];
+        times[slot] = times[next];
+        lats[slot] = lats[next];
+        lons[slot] = lons[next];
+        slot = next;
+      }
+      next = ( next + 1 ) & mask;
+    }
+    keys[slot] = EMPTY;
+    size--;
+  }
+
+  private static int hash( final long key ) {
+    // the low bits of a mac are the most random, but mix anyway since vendors hand them out in runs
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) ( h ^ ( h >>> 32 ) );
+  }
+}
@@ -272,6 +272,7 @@ public final class MainActivity extends TabActivity {
   public void onPause() {
     ListActivity.info( "MAIN: pause." );
     super.onPause();
+    setDbScreenOn( false );
     
     // deal with wake lock
     if ( wakeLock.isHeld() ) {
@@ -284,6 +285,7 @@ public final class MainActivity extends TabActivity {
   public void onResume() {
     ListActivity.info( "MAIN: resume." );
     super.onResume();
+    setDbScreenOn( true );
     
     // deal with wake lock
     if ( ! wakeLock.isHeld() && screenLocked ) {
@@ -292,6 +294,16 @@ public final class MainActivity extends TabActivity {
     }
   }
   
+  /**
+   * while someone is looking, have the db writer commit promptly instead of batching
+   */
+  private void setDbScreenOn( final boolean screenOn ) {
+    final DatabaseHelper dbHelper = ListActivity.lameStatic.dbHelper;
+    if ( dbHelper != null ) {
+      dbHelper.getCommitScheduler().setScreenOn( screenOn );
+    }
+  }
+  
   @Override
   public void onConfigurationChanged( final Configuration newConfig ) {
     ListActivity.info( "MAIN: config changed" );
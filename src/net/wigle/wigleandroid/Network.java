@@ -164,6 +164,13 @@ public final class Network {
     return channel;
   }
   
+  /**
+   * @return the wifi channel for a frequency, or null if it isn't one
+   */
+  public static Integer getChannel( final int frequency ) {
+    return freqToChan.get( frequency );
+  }
+  
   public void setLevel( final int level ) {
     this.level = level;
   }
@@ -13,7 +13,6 @@ import android.app.Activity;
 import android.app.Dialog;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
@@ -41,12 +40,25 @@ public class NetworkActivity extends Activity {
   
   private static final int MSG_OBS_UPDATE = 1;
   private static final int MSG_OBS_DONE = 2;
+  private static final int MSG_SUMMARY = 3;
+  private static final int OBS_BATCH = 256;
   
   private Network network;
   private IMapView mapView;
   private SimpleDateFormat format;
   private int observations = 0;
-  private ConcurrentLinkedHashMap<LatLon, Integer> obsMap = new ConcurrentLinkedHashMap<LatLon, Integer>( 512 );
+  private ObservationPoints obsPoints = new ObservationPoints( 512 );
+  private QueryThread.Request request;
+  private QueryThread.Request summaryRequest;
+  private QueryThread.Request countRequest;
+  /** the cache's tokens for the loads above, a cancelled request never gets to put */
+  private Object obsToken;
+  private Object summaryToken;
+  /** observation count from the summary or a count of rows, -1 until then */
+  private volatile long summaryCount = -1L;
+  private boolean obsOnMap = false;
+  /** the map points came complete from the cache, no need to query them */
+  private boolean obsCached = false;
   
   // used for shutting extraneous activities down on an error
   public static NetworkActivity networkActivity;
@@ -108,6 +120,11 @@ public class NetworkActivity extends Activity {
       tv = (TextView) findViewById( R.id.na_cap ); 
       tv.setText( " " + network.getCapabilities().replace("][", "]\n[") );
       
+      final ObservationPoints cached = ListActivity.lameStatic.dbHelper.getQueryCache().getObservations( bssid );
+      if ( cached != null ) {
+        obsPoints = cached;
+        obsCached = true;
+      }
       setupMap( network );
       // kick off the query now that we have our map
       setupQuery();      
@@ -117,6 +134,19 @@ public class NetworkActivity extends Activity {
   
   public void onDestroy() {    
     networkActivity = null;
+    final QueryCache cache = ListActivity.lameStatic.dbHelper.getQueryCache();
+    if ( request != null ) {
+      // nobody to show the rest to
+      request.cancel();
+      cache.abandonObservations( network.getBssid(), obsToken );
+    }
+    if ( summaryRequest != null ) {
+      summaryRequest.cancel();
+      cache.abandonSummary( network.getBssid(), summaryToken );
+    }
+    if ( countRequest != null ) {
+      countRequest.cancel();
+    }
     super.onDestroy();
   }
   
@@ -126,7 +156,14 @@ public class NetworkActivity extends Activity {
       @Override
       public void handleMessage( final Message msg ) {        
         final TextView tv = (TextView) findViewById( R.id.na_observe );
-        if ( msg.what == MSG_OBS_UPDATE ) {
+        if ( msg.what == MSG_SUMMARY ) {
+          // negative if even counting didn't work
+          tv.setText( " " + ( summaryCount >= 0L ? Long.toString( summaryCount ) : "?" ) );
+        }
+        else if ( summaryCount >= 0L ) {
+          // the summary already said how many
+        }
+        else if ( msg.what == MSG_OBS_UPDATE ) {
           tv.setText( " " + Integer.toString( observations ) + "...");
         }
         else if ( msg.what == MSG_OBS_DONE ) {
@@ -135,37 +172,138 @@ public class NetworkActivity extends Activity {
       }
     };
     
-    final String sql = "SELECT level,lat,lon FROM " 
-      + DatabaseHelper.LOCATION_TABLE + " WHERE bssid = '" + network.getBssid() + "'";
+    final DatabaseHelper dbHelper = ListActivity.lameStatic.dbHelper;
+    final QueryCache cache = dbHelper.getQueryCache();
+    final String bssid = network.getBssid();
+    final NetworkSummaries.Summary cachedSummary = cache.getSummary( bssid );
+    if ( cachedSummary != null ) {
+      summaryCount = cachedSummary.getCount();
+      handler.sendEmptyMessage( MSG_SUMMARY );
+      if ( ! obsOnMap || obsCached ) {
+        // nothing left to ask the db
+        return;
+      }
+    }
     
-    final QueryThread.Request request = new QueryThread.Request( sql, new QueryThread.ResultHandler() {
-      public void handleRow( final Cursor cursor ) {
-        observations++;
-        obsMap.put( new LatLon( cursor.getFloat(1), cursor.getFloat(2) ), cursor.getInt(0) );
-        if ( ( observations % 10 ) == 0 ) {
-          // change things on the gui thread
-          handler.sendEmptyMessage( MSG_OBS_UPDATE );
+    final long netKey = dbHelper.getNetKey( bssid );
+    if ( netKey == MacLocationIndex.NO_KEY ) {
+      // a cell that's never been written, nothing to find
+      final TextView tv = (TextView) findViewById( R.id.na_observe );
+      tv.setText( " 0" );
+      return;
+    }
+    
+    // without the observation query, nothing else would fill in the count
+    final boolean obsQueried = obsOnMap && ! obsCached;
+    if ( cachedSummary == null ) {
+      // one row by key, the count is there long before the observations would be
+      summaryToken = cache.beginSummary( bssid );
+      summaryRequest = new QueryThread.Request( NetworkSummaries.SELECT_SQL, new Object[]{ netKey }, 
+          new QueryThread.ResultHandler() {
+        public void handleRow( final Cursor cursor ) {
+          final NetworkSummaries.Summary summary = NetworkSummaries.Summary.fromCursor( cursor );
+          if ( summary != null ) {
+            cache.putSummary( bssid, summaryToken, summary );
+            summaryCount = summary.getCount();
+            handler.sendEmptyMessage( MSG_SUMMARY );
+          }
+        }
+        
+        public void complete() {
+          // no row, or a bad one
+          cache.abandonSummary( bssid, summaryToken );
+          if ( summaryCount < 0L && ! obsQueried ) {
+            // not summed up yet, the backfill hasn't got to it or it hasn't been written yet
+            countObservations( handler, bssid, netKey );
+          }
         }
+      }, QueryThread.PRIORITY_HIGH );
+      dbHelper.addToQueue( summaryRequest );
+    }
+    
+    if ( ! obsOnMap || obsCached ) {
+      // only the map needs every observation, and it may already have them
+      if ( obsCached && mapView != null ) {
+        ((View) mapView).postInvalidate();
+      }
+      return;
+    }
+    final String sql;
+    final Object[] args;
+    if ( dbHelper.isLocationsMigrating() ) {
+      // some are still in the v1 table, which only has the bssid
+      sql = "SELECT level,lat,lon FROM " + DatabaseHelper.LOCATION_TABLE + " WHERE bssid = ?";
+      args = new Object[]{ bssid };
+    }
+    else {
+      sql = "SELECT level,lat / 10000000.0,lon / 10000000.0 FROM " + DatabaseHelper.LOCATION_V2_TABLE 
+        + " WHERE netkey = ?";
+      args = new Object[]{ netKey };
+    }
+    
+    obsToken = cache.beginObservations( bssid );
+    request = new QueryThread.Request( sql, args, 
+        new QueryThread.BatchHandler( OBS_BATCH, RowBatch.INT, RowBatch.FLOAT, RowBatch.FLOAT ) {
+      public void handleBatch( final RowBatch batch ) {
+        observations += batch.size();
+        obsPoints.add( batch.getInts(0), batch.getFloats(1), batch.getFloats(2), batch.size() );
+        // change things on the gui thread
+        handler.sendEmptyMessage( MSG_OBS_UPDATE );
       }
       
-      public void complete() {
+      public void done() {
+        if ( ! request.isCancelled() ) {
+          // only ever cache all of them
+          cache.putObservations( bssid, obsToken, obsPoints );
+        }
+        else {
+          cache.abandonObservations( bssid, obsToken );
+        }
         handler.sendEmptyMessage( MSG_OBS_DONE );
         if ( mapView != null ) {
           // force a redraw
           ((View) mapView).postInvalidate();
         }
       }
-    });
-    ListActivity.lameStatic.dbHelper.addToQueue( request );
+    }, QueryThread.PRIORITY_NORMAL );
+    dbHelper.addToQueue( request );
   }
-    
+  
+  /**
+   * count a network's rows, for when it has no summary and the map isn't counting them
+   */
+  private void countObservations( final Handler handler, final String bssid, final long netKey ) {
+    final DatabaseHelper dbHelper = ListActivity.lameStatic.dbHelper;
+    final String sql;
+    final Object[] args;
+    if ( dbHelper.isLocationsMigrating() ) {
+      sql = "SELECT count(*) FROM " + DatabaseHelper.LOCATION_TABLE + " WHERE bssid = ?";
+      args = new Object[]{ bssid };
+    }
+    else {
+      sql = "SELECT count(*) FROM " + DatabaseHelper.LOCATION_V2_TABLE + " WHERE netkey = ?";
+      args = new Object[]{ netKey };
+    }
+    countRequest = new QueryThread.Request( sql, args, new QueryThread.ResultHandler() {
+      public void handleRow( final Cursor cursor ) {
+        summaryCount = cursor.getLong(0);
+      }
+      
+      public void complete() {
+        handler.sendEmptyMessage( MSG_SUMMARY );
+      }
+    }, QueryThread.PRIORITY_HIGH );
+    dbHelper.addToQueue( countRequest );
+  }
+  
   private void setupMap( final Network network ) {
     final IGeoPoint point = MappingActivity.getCenter( this, network.getGeoPoint(), null );
     mapView = new MapView( this, 256 );
     final OpenStreetMapViewWrapper overlay = setupMap( this, point, mapView, R.id.netmap_rl );
     if ( overlay != null ) {
       overlay.setSingleNetwork( network );
-      overlay.setObsMap( obsMap );      
+      overlay.setObsPoints( obsPoints );      
+      obsOnMap = true;
     }
   }
   
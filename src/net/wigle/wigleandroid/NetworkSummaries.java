@@ -0,0 +1,279 @@
+package net.wigle.wigleandroid;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * a row per network summing up its observations: how many, first and last seen, the best signal and
+ * where it was, a signal-weighted centroid, and the bounding box. kept up to date in the same transaction
+ * as each location insert, so the network screen reads one row by key instead of every observation.
+ *
+ * the centroid weights each observation by its level above -100 dBm (at least 1), a stronger signal being
+ * nearer the network. positions are 1e7 scaled like location2.
+ *
+ * networks from before the table existed are filled in from location2 a batch at a time between drains,
+ * after any v1 location migration. until then a network has no row, rather than one counting only what
+ * came in since.
+ *
+ * everything but the sql constants is only called on the db thread.
+ */
+public final class NetworkSummaries {
+  public static final String SUMMARY_TABLE = "netsummary";
+  /** the netkey to backfill from, the table is dropped once backfill is done */
+  private static final String BACKFILL_TABLE = "netsummary_backfill";
+  private static final int BACKFILL_BATCH = 500;
+
+  /** the columns, decoded, for NetworkSummaries.Summary.fromCursor */
+  public static final String SELECT_SQL = "SELECT count,firsttime,lasttime,bestlevel,"
+    + "bestlat / 10000000.0,bestlon / 10000000.0,wlat / wsum / 10000000.0,wlon / wsum / 10000000.0,"
+    + "minlat / 10000000.0,maxlat / 10000000.0,minlon / 10000000.0,maxlon / 10000000.0"
+    + " FROM " + SUMMARY_TABLE + " WHERE netkey = ?";
+
+  private static final String CREATE = "create table if not exists " + SUMMARY_TABLE + " ( "
+    + "netkey integer primary key not null,"
+    + "count integer not null default 0,"
+    + "firsttime long not null default " + Long.MAX_VALUE + ","
+    + "lasttime long not null default 0,"
+    + "bestlevel integer not null default " + Integer.MIN_VALUE + ","
+    + "bestlat integer not null default 0,"
+    + "bestlon integer not null default 0,"
+    + "wsum real not null default 0,"
+    + "wlat real not null default 0,"
+    + "wlon real not null default 0,"
+    + "minlat integer not null default " + Integer.MAX_VALUE + ","
+    + "maxlat integer not null default " + Integer.MIN_VALUE + ","
+    + "minlon integer not null default " + Integer.MAX_VALUE + ","
+    + "maxlon integer not null default " + Integer.MIN_VALUE
+    + ")";
+
+  private static final String WEIGHT_SQL = "max(1, 100 + level)";
+
+  private SQLiteStatement seed;
+  private SQLiteStatement update;
+  private boolean backfilling = false;
+  private long backfillKey = Long.MIN_VALUE;
+
+  public static final class Summary {
+    private final long count;
+    private final long firstTime;
+    private final long lastTime;
+    private final int bestLevel;
+    private final double bestLat;
+    private final double bestLon;
+    private final double centroidLat;
+    private final double centroidLon;
+    private final double minLat;
+    private final double maxLat;
+    private final double minLon;
+    private final double maxLon;
+
+    private Summary( final Cursor cursor ) {
+      count = cursor.getLong(0);
+      firstTime = cursor.getLong(1);
+      lastTime = cursor.getLong(2);
+      bestLevel = cursor.getInt(3);
+      bestLat = cursor.getDouble(4);
+      bestLon = cursor.getDouble(5);
+      centroidLat = cursor.getDouble(6);
+      centroidLon = cursor.getDouble(7);
+      minLat = cursor.getDouble(8);
+      maxLat = cursor.getDouble(9);
+      minLon = cursor.getDouble(10);
+      maxLon = cursor.getDouble(11);
+    }
+
+    /**
+     * @param cursor on a row of SELECT_SQL
+     * @return the summary, or null if the network has no observations
+     */
+    public static Summary fromCursor( final Cursor cursor ) {
+      final Summary summary = new Summary( cursor );
+      return summary.count > 0 ? summary : null;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getFirstTime() {
+      return firstTime;
+    }
+
+    public long getLastTime() {
+      return lastTime;
+    }
+
+    public int getBestLevel() {
+      return bestLevel;
+    }
+
+    public double getBestLat() {
+      return bestLat;
+    }
+
+    public double getBestLon() {
+      return bestLon;
+    }
+
+    public double getCentroidLat() {
+      return centroidLat;
+    }
+
+    public double getCentroidLon() {
+      return centroidLon;
+    }
+
+    public double getMinLat() {
+      return minLat;
+    }
+
+    public double getMaxLat() {
+      return maxLat;
+    }
+
+    public double getMinLon() {
+      return minLon;
+    }
+
+    public double getMaxLon() {
+      return maxLon;
+    }
+
+    @Override
+    public String toString() {
+      return "Summary: count: " + count + " first: " + firstTime + " last: " + lastTime + " best: " + bestLevel
+        + " at " + bestLat + "," + bestLon + " centroid: " + centroidLat + "," + centroidLon;
+    }
+  }
+
+  /**
+   * create the table if needed, starting a backfill of the existing locations if it's new.
+   */
+  public void open( final SQLiteDatabase db ) {
+    if ( ! hasTable( db, SUMMARY_TABLE ) ) {
+      db.beginTransaction();
+      try {
+        db.execSQL( CREATE );
+        db.execSQL( "create table if not exists " + BACKFILL_TABLE + " ( _id integer primary key, netkey integer )" );
+        db.execSQL( "INSERT INTO " + BACKFILL_TABLE + " (_id,netkey) VALUES (1," + Long.MIN_VALUE + ")" );
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+      }
+    }
+
+    seed = db.compileStatement( "INSERT OR IGNORE INTO " + SUMMARY_TABLE + " (netkey) VALUES (?)" );
+    // every right hand side sees the row as it was, so the best position goes with the old best level
+    update = db.compileStatement( "UPDATE " + SUMMARY_TABLE + " SET count = count + 1,"
+        + " firsttime = min(firsttime, ?1), lasttime = max(lasttime, ?1),"
+        + " bestlat = CASE WHEN ?2 > bestlevel THEN ?3 ELSE bestlat END,"
+        + " bestlon = CASE WHEN ?2 > bestlevel THEN ?4 ELSE bestlon END,"
+        + " bestlevel = max(bestlevel, ?2),"
+        + " wsum = wsum + ?5, wlat = wlat + ( ?5 * ?3 ), wlon = wlon + ( ?5 * ?4 ),"
+        + " minlat = min(minlat, ?3), maxlat = max(maxlat, ?3), minlon = min(minlon, ?4), maxlon = max(maxlon, ?4)"
+        + " WHERE netkey = ?6" );
+
+    if ( hasTable( db, BACKFILL_TABLE ) ) {
+      final Cursor cursor = db.rawQuery( "SELECT netkey FROM " + BACKFILL_TABLE + " WHERE _id = 1", (String[]) null );
+      if ( cursor.moveToFirst() ) {
+        backfillKey = cursor.getLong(0);
+        backfilling = true;
+        ListActivity.info( "network summaries backfilling from netkey: " + backfillKey );
+      }
+      cursor.close();
+    }
+  }
+
+  public void close() {
+    if ( seed != null ) {
+      seed.close();
+    }
+    if ( update != null ) {
+      update.close();
+    }
+  }
+
+  public boolean isBackfilling() {
+    return backfilling;
+  }
+
+  /**
+   * count a location insert, inside its transaction. a network the backfill hasn't got to yet is left
+   * alone: its row would only hold the new sightings until then, and the backfill counts this one anyway.
+   * @param latE7 1e7 scaled
+   * @param lonE7 1e7 scaled
+   */
+  public void locationAdded( final long netKey, final int level, final long latE7, final long lonE7,
+      final long time ) {
+
+    if ( backfilling && netKey > backfillKey ) {
+      return;
+    }
+    seed.bindLong( 1, netKey );
+    seed.execute();
+    update.bindLong( 1, time );
+    update.bindLong( 2, level );
+    update.bindLong( 3, latE7 );
+    update.bindLong( 4, lonE7 );
+    update.bindLong( 5, Math.max( 1, 100 + level ) );
+    update.bindLong( 6, netKey );
+    update.execute();
+  }
+
+  /**
+   * recompute the next BACKFILL_BATCH networks' summaries from their locations, in its own transaction.
+   * between drains only, and not while locations are still being migrated.
+   */
+  public void backfillStep( final SQLiteDatabase db, final String networkTable, final String locationTable ) {
+    final long start = System.currentTimeMillis();
+    final String[] args = new String[]{ Long.toString( backfillKey ) };
+    final String batch = "SELECT netkey FROM " + networkTable + " WHERE netkey > ? ORDER BY netkey LIMIT " + BACKFILL_BATCH;
+    db.beginTransaction();
+    try {
+      final Cursor cursor = db.rawQuery( "SELECT count(*),max(netkey) FROM (" + batch + ")", args );
+      cursor.moveToFirst();
+      final int networks = cursor.getInt(0);
+      final long lastKey = cursor.getLong(1);
+      cursor.close();
+
+      // first best wins, like the update's strict >
+      final String best = " FROM " + locationTable + " b WHERE b.netkey = l.netkey ORDER BY b.level DESC, b._id LIMIT 1)";
+      db.execSQL( "INSERT OR REPLACE INTO " + SUMMARY_TABLE
+          + " (netkey,count,firsttime,lasttime,bestlevel,bestlat,bestlon,wsum,wlat,wlon,minlat,maxlat,minlon,maxlon)"
+          + " SELECT l.netkey,count(*),min(l.time),max(l.time),max(l.level),"
+          + "(SELECT b.lat" + best + ",(SELECT b.lon" + best + ","
+          + "sum(" + WEIGHT_SQL + "),sum(" + WEIGHT_SQL + " * 1.0 * l.lat),sum(" + WEIGHT_SQL + " * 1.0 * l.lon),"
+          + "min(l.lat),max(l.lat),min(l.lon),max(l.lon)"
+          + " FROM " + locationTable + " l WHERE l.netkey IN (" + batch + ") GROUP BY l.netkey", args );
+
+      if ( networks < BACKFILL_BATCH ) {
+        db.execSQL( "DROP TABLE " + BACKFILL_TABLE );
+      }
+      else {
+        db.execSQL( "UPDATE " + BACKFILL_TABLE + " SET netkey = " + lastKey + " WHERE _id = 1" );
+      }
+      db.setTransactionSuccessful();
+      if ( networks < BACKFILL_BATCH ) {
+        backfilling = false;
+        ListActivity.info( "network summaries backfill done" );
+      }
+      else {
+        backfillKey = lastKey;
+      }
+    }
+    finally {
+      db.endTransaction();
+    }
+    ListActivity.info( "network summaries backfill step in " + (System.currentTimeMillis() - start) + "ms" );
+  }
+
+  private static boolean hasTable( final SQLiteDatabase db, final String table ) {
+    final Cursor cursor = db.rawQuery( "SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+        new String[]{ table } );
+    final boolean has = cursor.moveToFirst();
+    cursor.close();
+    return has;
+  }
+}
@@ -0,0 +1,253 @@
+package net.wigle.wigleandroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.location.Location;
+
+/**
+ * append-only, memory-mapped file of fixed-size observation records. the scanning side spills here
+ * when the db queue is full instead of dropping, and keeps spilling until it's caught up so nothing
+ * overtakes what's in here on the way to the db. the db thread replays records into its transactions
+ * and marks them done after commit, and the whole thing is truncated once it's caught up. since it's
+ * mapped, anything written survives the process being killed and is picked up again on the next open.
+ *
+ * record layout (RECORD_SIZE bytes):
+ *   int state, long time, double lat, double lon, double altitude, float accuracy,
+ *   int level, int frequency, byte type, byte newForRun,
+ *   then bssid, ssid, capabilities as short length + utf-8 bytes in fixed width slots.
+ * the state word is written last, so a half-written record is never replayed.
+ */
+public final class ObservationJournal {
+  public static final String JOURNAL_NAME = "wiglewifi.journal";
+
+  private static final int RECORD_SIZE = 512;
+  private static final int STATE_EMPTY = 0;
+  private static final int STATE_WRITTEN = 1;
+  private static final int STATE_REPLAYED = 2;
+
+  private static final int OFF_TIME = 4;
+  private static final int OFF_LAT = 12;
+  private static final int OFF_LON = 20;
+  private static final int OFF_ALT = 28;
+  private static final int OFF_ACCURACY = 36;
+  private static final int OFF_LEVEL = 40;
+  private static final int OFF_FREQUENCY = 44;
+  private static final int OFF_TYPE = 48;
+  private static final int OFF_NEW_FOR_RUN = 49;
+  private static final int OFF_BSSID = 50;
+  private static final int MAX_BSSID = 48;
+  private static final int OFF_SSID = OFF_BSSID + 2 + MAX_BSSID;
+  private static final int MAX_SSID = 128;
+  private static final int OFF_CAPABILITIES = OFF_SSID + 2 + MAX_SSID;
+  private static final int MAX_CAPABILITIES = RECORD_SIZE - OFF_CAPABILITIES - 2;
+
+  private static final String ENCODING = "UTF-8";
+  private static final String PROVIDER = "journal";
+
+  /** called for each record read back out of the journal */
+  public interface ReplayHandler {
+    public void replay( Network network, int level, Location location, boolean newForRun );
+  }
+
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  /** first record not yet committed to the db */
+  private int readPos = 0;
+  /** next free record */
+  private int writePos = 0;
+  private long dropped = 0L;
+
+  /**
+   * map the journal file, creating it if needed, and find any records left over from a previous run.
+   * @param file where the journal lives
+   * @param capacity how many records it holds
+   * @throws IOException if it can't be created or mapped
+   */
+  public ObservationJournal( final File file, final int capacity ) throws IOException {
+    this.capacity = capacity;
+    final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try {
+      final long size = (long) capacity * RECORD_SIZE;
+      if ( raf.length() != size ) {
+        raf.setLength( size );
+      }
+      final FileChannel channel = raf.getChannel();
+      buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+    }
+    finally {
+      // the mapping stays valid after the file is closed
+      raf.close();
+    }
+    recover();
+  }
+
+  /**
+   * records are written in order and the journal is only truncated when all of them are replayed, so
+   * everything between the first WRITTEN record and the first EMPTY one still needs to go to the db.
+   */
+  private void recover() {
+    int pos = 0;
+    while ( pos < capacity && buffer.getInt( pos * RECORD_SIZE ) == STATE_REPLAYED ) {
+      pos++;
+    }
+    readPos = pos;
+    while ( pos < capacity && buffer.getInt( pos * RECORD_SIZE ) == STATE_WRITTEN ) {
+      pos++;
+    }
+    writePos = pos;
+    if ( readPos == writePos ) {
+      truncate();
+    }
+    else {
+      ListActivity.info( "journal recovered " + ( writePos - readPos ) + " observations" );
+    }
+  }
+
+  /**
+   * spill an observation. never waits on the db.
+   * @return false if the journal is full
+   */
+  public synchronized boolean append( final Network network, final int level, final Location location,
+      final boolean newForRun ) {
+
+    if ( writePos >= capacity ) {
+      dropped++;
+      return false;
+    }
+    final int base = writePos * RECORD_SIZE;
+    buffer.putLong( base + OFF_TIME, location.getTime() );
+    buffer.putDouble( base + OFF_LAT, location.getLatitude() );
+    buffer.putDouble( base + OFF_LON, location.getLongitude() );
+    buffer.putDouble( base + OFF_ALT, location.getAltitude() );
+    buffer.putFloat( base + OFF_ACCURACY, location.getAccuracy() );
+    buffer.putInt( base + OFF_LEVEL, level );
+    buffer.putInt( base + OFF_FREQUENCY, network.getFrequency() );
+    buffer.put( base + OFF_TYPE, (byte) network.getType().getCode().charAt( 0 ) );
+    buffer.put( base + OFF_NEW_FOR_RUN, (byte) ( newForRun ? 1 : 0 ) );
+    putString( base + OFF_BSSID, MAX_BSSID, network.getBssid() );
+    putString( base + OFF_SSID, MAX_SSID, network.getSsid() );
+    putString( base + OFF_CAPABILITIES, MAX_CAPABILITIES, network.getCapabilities() );
+    // last, this is what makes the record count
+    buffer.putInt( base, STATE_WRITTEN );
+    writePos++;
+    return true;
+  }
+
+  /**
+   * spill an observation only if earlier ones are still waiting in here, so it's written after them 
+   * instead of overtaking them through the queue.
+   * @return false if nothing is pending, or the journal is full
+   */
+  public synchronized boolean appendIfPending( final Network network, final int level, final Location location,
+      final boolean newForRun ) {
+
+    // full is the caller's to deal with, not a drop yet
+    return readPos < writePos && writePos < capacity && append( network, level, location, newForRun );
+  }
+
+  public synchronized boolean hasPending() {
+    return readPos < writePos;
+  }
+
+  public synchronized int getPendingCount() {
+    return writePos - readPos;
+  }
+
+  public synchronized long getDroppedCount() {
+    return dropped;
+  }
+
+  /**
+   * hand up to max uncommitted records to the handler. they stay uncommitted, and will be handed out
+   * again, until commit() is called.
+   * @return how many records were replayed
+   */
+  public synchronized int replay( final int max, final ReplayHandler handler ) {
+    final int end = Math.min( writePos, readPos + max );
+    for ( int pos = readPos; pos < end; pos++ ) {
+      final int base = pos * RECORD_SIZE;
+      final NetworkType type = NetworkType.typeForCode( String.valueOf( (char) buffer.get( base + OFF_TYPE ) ) );
+      final int level = buffer.getInt( base + OFF_LEVEL );
+      final Network network = new Network( getString( base + OFF_BSSID ), getString( base + OFF_SSID ),
+          buffer.getInt( base + OFF_FREQUENCY ), getString( base + OFF_CAPABILITIES ), level,
+          type == null ? NetworkType.WIFI : type );
+
+      final Location location = new Location( PROVIDER );
+      location.setTime( buffer.getLong( base + OFF_TIME ) );
+      location.setLatitude( buffer.getDouble( base + OFF_LAT ) );
+      location.setLongitude( buffer.getDouble( base + OFF_LON ) );
+      location.setAltitude( buffer.getDouble( base + OFF_ALT ) );
+      location.setAccuracy( buffer.getFloat( base + OFF_ACCURACY ) );
+
+      handler.replay( network, level, location, buffer.get( base + OFF_NEW_FOR_RUN ) != 0 );
+    }
+    return Math.max( 0, end - readPos );
+  }
+
+  /**
+   * the db has committed the next count records, mark them so a crash won't replay them twice.
+   * truncates the journal once everything is committed.
+   */
+  public synchronized void commit( final int count ) {
+    final int end = Math.min( writePos, readPos + count );
+    for ( int pos = readPos; pos < end; pos++ ) {
+      buffer.putInt( pos * RECORD_SIZE, STATE_REPLAYED );
+    }
+    readPos = end;
+    if ( readPos == writePos ) {
+      truncate();
+    }
+  }
+
+  /**
+   * push everything out to the file, for shutdown.
+   */
+  public synchronized void force() {
+    buffer.force();
+  }
+
+  private void truncate() {
+    for ( int pos = 0; pos < writePos; pos++ ) {
+      buffer.putInt( pos * RECORD_SIZE, STATE_EMPTY );
+    }
+    // anything past writePos could be a torn write from before a crash
+    if ( writePos < capacity ) {
+      buffer.putInt( writePos * RECORD_SIZE, STATE_EMPTY );
+    }
+    readPos = 0;
+    writePos = 0;
+  }
+
+  private void putString( final int offset, final int max, final String value ) {
+    byte[] bytes;
+    try {
+      bytes = value.getBytes( ENCODING );
+    }
+    catch ( UnsupportedEncodingException ex ) {
+      // utf-8 is always there
+      bytes = new byte[0];
+    }
+    final int length = Math.min( bytes.length, max );
+    buffer.putShort( offset, (short) length );
+    buffer.position( offset + 2 );
+    buffer.put( bytes, 0, length );
+  }
+
+  private String getString( final int offset ) {
+    final int length = buffer.getShort( offset );
+    final byte[] bytes = new byte[length];
+    buffer.position( offset + 2 );
+    buffer.get( bytes );
+    try {
+      return new String( bytes, ENCODING );
+    }
+    catch ( UnsupportedEncodingException ex ) {
+      return "";
+    }
+  }
+}
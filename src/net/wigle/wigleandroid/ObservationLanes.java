@@ -0,0 +1,142 @@
+package net.wigle.wigleandroid;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * two separately bounded queues feeding one consumer: a priority lane (networks new for the run) and a
+ * refresh lane (re-sightings). a burst of re-sightings fills only its own lane, so it can't crowd out
+ * new networks, and the consumer drains the priority lane by weight so it never starves either.
+ * @param <E> element
+ */
+public final class ObservationLanes<E> {
+  // out of every drain, this share (in quarters) goes to the priority lane first
+  private static final int PRIORITY_QUARTERS = 3;
+
+  private final ArrayBlockingQueue<E> priorityLane;
+  private final ArrayBlockingQueue<E> refreshLane;
+  /** one permit per queued element, across both lanes, and one more while woken */
+  private final Semaphore available = new Semaphore( 0 );
+  /** a wake() that take() hasn't answered yet, so wakes don't pile up permits */
+  private final AtomicBoolean woken = new AtomicBoolean( false );
+  private final AtomicLong priorityShed = new AtomicLong();
+  private final AtomicLong refreshShed = new AtomicLong();
+
+  public ObservationLanes( final int priorityCapacity, final int refreshCapacity ) {
+    priorityLane = new ArrayBlockingQueue<E>( priorityCapacity );
+    refreshLane = new ArrayBlockingQueue<E>( refreshCapacity );
+  }
+
+  /**
+   * @param element what to queue
+   * @param priority true for the priority lane
+   * @return false if that lane is full
+   */
+  public boolean offer( final E element, final boolean priority ) {
+    final boolean added = lane( priority ).offer( element );
+    if ( added ) {
+      available.release();
+    }
+    return added;
+  }
+
+  /**
+   * blocks until there's room in the lane.
+   */
+  public void put( final E element, final boolean priority ) throws InterruptedException {
+    lane( priority ).put( element );
+    available.release();
+  }
+
+  /**
+   * count an element that couldn't be queued anywhere and was dropped
+   */
+  public void shed( final boolean priority ) {
+    ( priority ? priorityShed : refreshShed ).incrementAndGet();
+  }
+
+  /**
+   * let a blocked take() return without an element, for when the consumer has other work. wakes before
+   * the next take() count once, whether or not it was blocked.
+   */
+  public void wake() {
+    if ( woken.compareAndSet( false, true ) ) {
+      available.release();
+    }
+  }
+
+  /**
+   * blocks until either lane has something, priority lane first.
+   * @return the element, or null if woken up with nothing queued
+   */
+  public E take() throws InterruptedException {
+    available.acquire();
+    E element = priorityLane.poll();
+    if ( element == null ) {
+      element = refreshLane.poll();
+    }
+    if ( element == null ) {
+      // that was the wake's permit
+      woken.set( false );
+    }
+    else if ( woken.compareAndSet( true, false ) ) {
+      // returning at all answers the wake, its permit is right behind the flag
+      available.acquireUninterruptibly();
+    }
+    return element;
+  }
+
+  /**
+   * move up to max elements into the list, giving the priority lane 3/4 of the room first, then the refresh
+   * lane, then the priority lane again with whatever room is left.
+   * @return how many were moved
+   */
+  public int drainTo( final List<E> list, final int max ) {
+    if ( max <= 0 ) {
+      return 0;
+    }
+    int drained = priorityLane.drainTo( list, Math.max( 1, ( max * PRIORITY_QUARTERS ) / 4 ) );
+    drained += refreshLane.drainTo( list, max - drained );
+    if ( drained < max ) {
+      drained += priorityLane.drainTo( list, max - drained );
+    }
+    // permits can trail the elements by a moment, offer() releases after adding
+    available.acquireUninterruptibly( drained );
+    return drained;
+  }
+
+  public int size() {
+    return priorityLane.size() + refreshLane.size();
+  }
+
+  public int getPriorityDepth() {
+    return priorityLane.size();
+  }
+
+  public int getRefreshDepth() {
+    return refreshLane.size();
+  }
+
+  /**
+   * @return how full the refresh lane is, 0-100
+   */
+  public int getRefreshPercent() {
+    final int depth = refreshLane.size();
+    return ( depth * 100 ) / ( depth + refreshLane.remainingCapacity() );
+  }
+
+  public long getPriorityShedCount() {
+    return priorityShed.get();
+  }
+
+  public long getRefreshShedCount() {
+    return refreshShed.get();
+  }
+
+  private ArrayBlockingQueue<E> lane( final boolean priority ) {
+    return priority ? priorityLane : refreshLane;
+  }
+}
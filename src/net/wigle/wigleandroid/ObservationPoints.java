@@ -0,0 +1,141 @@
+package net.wigle.wigleandroid;
+
+import java.util.Arrays;
+
+/**
+ * observation points for the map, (level, lat, lon) in parallel primitive arrays, one per distinct position
+ * like the LatLon map it replaced: a position seen again just gets its level updated in place. past maxSize
+ * positions the one added longest ago is overwritten, so a network seen fifty thousand times from a few
+ * hundred spots still shows every spot, without fifty thousand objects.
+ *
+ * positions are looked up in an open addressing table of slot numbers, compared as floats the way LatLon did.
+ *
+ * filled by a query worker while the map draws, so everything is synchronized.
+ */
+public final class ObservationPoints {
+  private final int[] levels;
+  private final float[] lats;
+  private final float[] lons;
+  private final int maxSize;
+
+  /** linear probing, slot + 1 of the point hashed near each entry, 0 for empty. at most half full */
+  private final int[] table;
+  private final int mask;
+
+  /** index of the oldest point */
+  private int head = 0;
+  private int size = 0;
+
+  public ObservationPoints( final int maxSize ) {
+    this.maxSize = maxSize;
+    levels = new int[maxSize];
+    lats = new float[maxSize];
+    lons = new float[maxSize];
+    int capacity = 2;
+    while ( capacity < maxSize * 2 ) {
+      capacity <<= 1;
+    }
+    table = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * add count points from column arrays, like a RowBatch's
+   */
+  public synchronized void add( final int[] level, final float[] lat, final float[] lon, final int count ) {
+    for ( int i = 0; i < count; i++ ) {
+      int index = find( lat[i], lon[i] );
+      if ( table[index] != 0 ) {
+        // been here before
+        levels[table[index] - 1] = level[i];
+        continue;
+      }
+      final int slot;
+      if ( size < maxSize ) {
+        slot = ( head + size ) % maxSize;
+        size++;
+      }
+      else {
+        slot = head;
+        head = ( head + 1 ) % maxSize;
+        unindex( slot );
+        // that can shift entries into where this one was going
+        index = find( lat[i], lon[i] );
+      }
+      levels[slot] = level[i];
+      lats[slot] = lat[i];
+      lons[slot] = lon[i];
+      table[index] = slot + 1;
+    }
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized void clear() {
+    head = 0;
+    size = 0;
+    Arrays.fill( table, 0 );
+  }
+
+  /**
+   * copy out the points, oldest first, as many as fit.
+   * @return how many were copied
+   */
+  public synchronized int copyTo( final int[] level, final float[] lat, final float[] lon ) {
+    final int count = Math.min( size, level.length );
+    for ( int i = 0; i < count; i++ ) {
+      final int slot = ( head + i ) % maxSize;
+      level[i] = levels[slot];
+      lat[i] = lats[slot];
+      lon[i] = lons[slot];
+    }
+    return count;
+  }
+
+  /**
+   * @return the table index holding the position, or the empty one where it would go
+   */
+  private int find( final float lat, final float lon ) {
+    int index = hash( lat, lon ) & mask;
+    while ( table[index] != 0 ) {
+      final int slot = table[index] - 1;
+      if ( lats[slot] == lat && lons[slot] == lon ) {
+        break;
+      }
+      index = ( index + 1 ) & mask;
+    }
+    return index;
+  }
+
+  /**
+   * take a slot's entry out of the table, shifting back any after it that probed past it
+   */
+  private void unindex( final int slot ) {
+    int index = hash( lats[slot], lons[slot] ) & mask;
+    while ( table[index] != slot + 1 ) {
+      index = ( index + 1 ) & mask;
+    }
+    table[index] = 0;
+    for ( int next = ( index + 1 ) & mask; table[next] != 0; next = ( next + 1 ) & mask ) {
+      final int home = hash( lats[table[next] - 1], lons[table[next] - 1] ) & mask;
+      // it can fill the hole unless its home is after the hole, up to where it sits
+      final boolean homeAfterHole = index <= next ? ( home > index && home <= next ) : ( home > index || home <= next );
+      if ( ! homeAfterHole ) {
+        table[index] = table[next];
+        table[next] = 0;
+        index = next;
+      }
+    }
+  }
+
+  private static int hash( final float lat, final float lon ) {
+    // 0 == -0, the same as the comparison
+    int hash = ( lat == 0f ? 0 : Float.floatToIntBits( lat ) ) * 31 + ( lon == 0f ? 0 : Float.floatToIntBits( lon ) );
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    return hash;
+  }
+}
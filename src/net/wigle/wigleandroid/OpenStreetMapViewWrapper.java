@@ -64,6 +64,11 @@ public final class OpenStreetMapViewWrapper extends Overlay {
   
   private Network singleNetwork = null;
   private ConcurrentLinkedHashMap<LatLon, Integer> obsMap;
+  private ObservationPoints obsPoints;
+  // drawing copies of obsPoints, reused between draws
+  private int[] drawLevels = new int[0];
+  private float[] drawLats = new float[0];
+  private float[] drawLons = new float[0];
   
   /**
    * code constructor
@@ -81,6 +86,10 @@ public final class OpenStreetMapViewWrapper extends Overlay {
     this.obsMap = obsMap;
   }
   
+  public void setObsPoints( final ObservationPoints obsPoints ) {
+    this.obsPoints = obsPoints;
+  }
+  
   private void setup() {    
     crossPaint.setColor( Color.argb( 255, 0, 0, 0 ) );
     crossPaint.setAntiAlias( true );
@@ -198,6 +207,10 @@ public final class OpenStreetMapViewWrapper extends Overlay {
       drawObsMap( c, osmv );
       drawTrail = false;
     }
+    if ( obsPoints != null ) {
+      drawObsPoints( c, osmv );
+      drawTrail = false;
+    }
     if ( drawTrail ) {
       drawTrail( c, osmv );
     }
@@ -227,6 +240,31 @@ public final class OpenStreetMapViewWrapper extends Overlay {
     }
   }
   
+  private void drawObsPoints( final Canvas c, final MapView osmv ) {
+    final int size = obsPoints.size();
+    if ( drawLevels.length < size ) {
+      drawLevels = new int[size];
+      drawLats = new float[size];
+      drawLons = new float[size];
+    }
+    final int count = obsPoints.copyTo( drawLevels, drawLats, drawLons );
+    
+    final GeoPoint obsPoint = new GeoPoint(0,0);
+    Point point = new Point();
+    Paint paint = new Paint();
+    final Projection proj = osmv.getProjection();
+    for ( int i = 0; i < count; i++ ) {
+      obsPoint.setLatitudeE6( (int) (drawLats[i] * 1E6) );
+      obsPoint.setLongitudeE6( (int) (drawLons[i] * 1E6) );
+      point = proj.toMapPixels( obsPoint, point );
+      paint.setColor( NetworkListAdapter.getSignalColor( drawLevels[i], true ) );
+      c.drawCircle( point.x, point.y, 4, paint );
+      if ( singleNetwork == null ) {
+        c.drawCircle( point.x, point.y, 5, trailPaint );
+      }
+    }
+  }
+  
   private void drawNetwork( final Canvas c, final MapView osmv, final Network network ) {
     final GeoPoint geoPoint = network.getGeoPoint();    
     if ( geoPoint != null ) {
@@ -0,0 +1,373 @@
+package net.wigle.wigleandroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.location.Address;
+import android.location.Location;
+
+/**
+ * what the ui has already read from the db, so going back and forth between search results and network
+ * details doesn't ask again: networks, summaries and map observations by bssid, and search results by
+ * their normalized QueryArgs. each is a size bounded lru.
+ *
+ * it listens for the writer's commits. a commit drops everything cached for the bssids it touched, and
+ * any search those networks could now turn up in (its filters match, and it's near enough for an
+ * address search). a commit of unknown changes drops everything, a summary backfill just the summaries.
+ *
+ * a read that started before a commit mustn't cache what it read after the commit has been and gone,
+ * so loads are bracketed: begin* before the query hands out a token, and put* only takes the value if
+ * no commit has touched that key since.
+ */
+public final class QueryCache implements DatabaseHelper.CommitListener {
+  private static final int MAX_NETWORKS = 1024;
+  private static final int MAX_SUMMARIES = 256;
+  private static final int MAX_OBSERVATIONS = 16;
+  private static final int MAX_SEARCHES = 32;
+  /** a search that didn't fill up walked every ring, this is the half-width of that square */
+  private static final double SEARCH_BOX_DEGREES = ( GeoCells.MAX_RING + 1 ) * ( GeoCells.CELL_E7 / 1e7d );
+
+  // all guarded by this
+  private final Map<String,Network> networks = new Lru<String,Network>( MAX_NETWORKS );
+  private final Map<String,NetworkSummaries.Summary> summaries = new Lru<String,NetworkSummaries.Summary>( MAX_SUMMARIES );
+  private final Map<String,ObservationPoints> observations = new Lru<String,ObservationPoints>( MAX_OBSERVATIONS );
+  private final Map<String,Search> searches = new Lru<String,Search>( MAX_SEARCHES );
+  /** kind + bssid -&gt; token of the load in progress */
+  private final Map<String,Object> pendingLoads = new HashMap<String,Object>();
+  /** search key -&gt; the search being loaded, which is its own token */
+  private final Map<String,Search> pendingSearches = new HashMap<String,Search>();
+  private final float[] results = new float[1];
+
+  private long hits = 0L;
+  private long misses = 0L;
+  private long invalidations = 0L;
+
+  private static final class Lru<K,V> extends LinkedHashMap<K,V> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    public Lru( final int maxSize ) {
+      super( 16, 0.75f, true );
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry( final Map.Entry<K,V> eldest ) {
+      return size() > maxSize;
+    }
+  }
+
+  /** a search's criteria, and once loaded its results */
+  private static final class Search {
+    private final String ssid;
+    private final String bssid;
+    private final boolean hasAddress;
+    private final double lat;
+    private final double lon;
+    private List<Network> results;
+    private final Set<String> resultBssids = new HashSet<String>();
+    /** meters to the furthest result of a full address search, or -1 if it covered the whole box */
+    private double radius = -1d;
+
+    public Search( final QueryArgs queryArgs ) {
+      ssid = blankToNull( queryArgs.getSSID() );
+      bssid = blankToNull( queryArgs.getBSSID() );
+      final Address address = queryArgs.getAddress();
+      hasAddress = address != null;
+      lat = hasAddress ? address.getLatitude() : 0d;
+      lon = hasAddress ? address.getLongitude() : 0d;
+    }
+  }
+
+  /**
+   * @return the key a search's results are cached under, the same for searches that can't differ
+   */
+  public static String searchKey( final QueryArgs queryArgs ) {
+    final StringBuilder key = new StringBuilder();
+    key.append( "ssid:" ).append( blankToNull( queryArgs.getSSID() ) );
+    key.append( "|bssid:" ).append( blankToNull( queryArgs.getBSSID() ) );
+    final Address address = queryArgs.getAddress();
+    if ( address != null ) {
+      // a micro-degree is ten centimeters, well under any difference in results
+      key.append( "|at:" ).append( Math.round( address.getLatitude() * 1e6d ) )
+        .append( ',' ).append( Math.round( address.getLongitude() * 1e6d ) );
+    }
+    return key.toString();
+  }
+
+  public synchronized Network getNetwork( final String bssid ) {
+    return count( networks.get( bssid ) );
+  }
+
+  public synchronized Object beginNetwork( final String bssid ) {
+    return begin( "n" + bssid );
+  }
+
+  public synchronized void putNetwork( final String bssid, final Object token, final Network network ) {
+    if ( finish( "n" + bssid, token ) && network != null ) {
+      networks.put( bssid, network );
+    }
+  }
+
+  /**
+   * the load behind token isn't going to put anything, no row or given up on. a no-op once it has.
+   */
+  public synchronized void abandonNetwork( final String bssid, final Object token ) {
+    abandon( "n" + bssid, token );
+  }
+
+  public synchronized NetworkSummaries.Summary getSummary( final String bssid ) {
+    return count( summaries.get( bssid ) );
+  }
+
+  public synchronized Object beginSummary( final String bssid ) {
+    return begin( "s" + bssid );
+  }
+
+  public synchronized void putSummary( final String bssid, final Object token, final NetworkSummaries.Summary summary ) {
+    if ( finish( "s" + bssid, token ) && summary != null ) {
+      summaries.put( bssid, summary );
+    }
+  }
+
+  public synchronized void abandonSummary( final String bssid, final Object token ) {
+    abandon( "s" + bssid, token );
+  }
+
+  /**
+   * @return the map points for a network, only ever cached complete. don't add to them
+   */
+  public synchronized ObservationPoints getObservations( final String bssid ) {
+    return count( observations.get( bssid ) );
+  }
+
+  public synchronized Object beginObservations( final String bssid ) {
+    return begin( "o" + bssid );
+  }
+
+  public synchronized void putObservations( final String bssid, final Object token, final ObservationPoints points ) {
+    if ( finish( "o" + bssid, token ) && points != null ) {
+      observations.put( bssid, points );
+    }
+  }
+
+  public synchronized void abandonObservations( final String bssid, final Object token ) {
+    abandon( "o" + bssid, token );
+  }
+
+  /**
+   * @return a copy of the results, or null if not cached
+   */
+  public synchronized List<Network> getSearch( final QueryArgs queryArgs ) {
+    final Search search = count( searches.get( searchKey( queryArgs ) ) );
+    return search == null ? null : new ArrayList<Network>( search.results );
+  }
+
+  public synchronized Object beginSearch( final QueryArgs queryArgs ) {
+    final Search search = new Search( queryArgs );
+    pendingSearches.put( searchKey( queryArgs ), search );
+    return search;
+  }
+
+  /**
+   * @param radius for an address search that filled up, meters to the furthest result, otherwise -1
+   */
+  public synchronized void putSearch( final QueryArgs queryArgs, final Object token, final List<Network> results,
+      final double radius ) {
+
+    final String key = searchKey( queryArgs );
+    if ( pendingSearches.get( key ) == token ) {
+      pendingSearches.remove( key );
+      final Search search = (Search) token;
+      search.results = new ArrayList<Network>( results );
+      for ( final Network network : results ) {
+        search.resultBssids.add( network.getBssid() );
+      }
+      search.radius = radius;
+      searches.put( key, search );
+    }
+  }
+
+  /**
+   * drop anything the commit could have changed. on the db thread.
+   */
+  public synchronized void committed( final TouchedNetworks touched ) {
+    if ( touched == null ) {
+      invalidations += networks.size() + summaries.size() + observations.size() + searches.size();
+      networks.clear();
+      summaries.clear();
+      observations.clear();
+      searches.clear();
+      pendingLoads.clear();
+      pendingSearches.clear();
+      return;
+    }
+    for ( int i = 0; i < touched.size(); i++ ) {
+      final String bssid = touched.getBssid( i );
+      if ( networks.remove( bssid ) != null ) {
+        invalidations++;
+      }
+      if ( summaries.remove( bssid ) != null ) {
+        invalidations++;
+      }
+      if ( observations.remove( bssid ) != null ) {
+        invalidations++;
+      }
+      pendingLoads.remove( "n" + bssid );
+      pendingLoads.remove( "s" + bssid );
+      pendingLoads.remove( "o" + bssid );
+    }
+    for ( final Iterator<Search> it = searches.values().iterator(); it.hasNext(); ) {
+      if ( affects( touched, it.next() ) ) {
+        it.remove();
+        invalidations++;
+      }
+    }
+    for ( final Iterator<Search> it = pendingSearches.values().iterator(); it.hasNext(); ) {
+      if ( affects( touched, it.next() ) ) {
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * drop every summary, nothing else depends on them. on the db thread.
+   */
+  public synchronized void summariesChanged() {
+    invalidations += summaries.size();
+    summaries.clear();
+    for ( final Iterator<String> it = pendingLoads.keySet().iterator(); it.hasNext(); ) {
+      if ( it.next().startsWith( "s" ) ) {
+        it.remove();
+      }
+    }
+  }
+
+  public synchronized void clear() {
+    committed( null );
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "QueryCache: networks: " + networks.size() + " summaries: " + summaries.size()
+      + " observations: " + observations.size() + " searches: " + searches.size()
+      + " hits: " + hits + " misses: " + misses + " invalidations: " + invalidations;
+  }
+
+  private Object begin( final String key ) {
+    final Object token = new Object();
+    pendingLoads.put( key, token );
+    return token;
+  }
+
+  private boolean finish( final String key, final Object token ) {
+    if ( pendingLoads.get( key ) == token ) {
+      pendingLoads.remove( key );
+      return true;
+    }
+    return false;
+  }
+
+  /** drop a pending load, unless a newer one has taken its place */
+  private void abandon( final String key, final Object token ) {
+    finish( key, token );
+  }
+
+  private <V> V count( final V value ) {
+    if ( value == null ) {
+      misses++;
+    }
+    else {
+      hits++;
+    }
+    return value;
+  }
+
+  /**
+   * @return true if any touched network is in the search's results or could be now
+   */
+  private boolean affects( final TouchedNetworks touched, final Search search ) {
+    for ( int i = 0; i < touched.size(); i++ ) {
+      final String bssid = touched.getBssid( i );
+      if ( search.resultBssids.contains( bssid ) ) {
+        return true;
+      }
+      if ( search.ssid != null && ! like( search.ssid, touched.getSsid( i ) ) ) {
+        continue;
+      }
+      if ( search.bssid != null && ! like( search.bssid, bssid ) ) {
+        continue;
+      }
+      if ( search.hasAddress ) {
+        final double lat = touched.getLat( i );
+        final double lon = touched.getLon( i );
+        if ( search.radius >= 0d ) {
+          Location.distanceBetween( search.lat, search.lon, lat, lon, results );
+          if ( results[0] > search.radius ) {
+            continue;
+          }
+        }
+        else if ( Math.abs( lat - search.lat ) > SEARCH_BOX_DEGREES || Math.abs( lon - search.lon ) > SEARCH_BOX_DEGREES ) {
+          continue;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * sqlite's like: % any run, _ any one char, ascii case-insensitive.
+   */
+  static boolean like( final String pattern, final String text ) {
+    if ( text == null ) {
+      return false;
+    }
+    int p = 0;
+    int t = 0;
+    // where to go back to on a mismatch, just past the last %
+    int starP = -1;
+    int starT = -1;
+    while ( t < text.length() ) {
+      if ( p < pattern.length() && pattern.charAt( p ) == '%' ) {
+        starP = ++p;
+        starT = t;
+      }
+      else if ( p < pattern.length() && ( pattern.charAt( p ) == '_' || same( pattern.charAt( p ), text.charAt( t ) ) ) ) {
+        p++;
+        t++;
+      }
+      else if ( starP >= 0 ) {
+        p = starP;
+        t = ++starT;
+      }
+      else {
+        return false;
+      }
+    }
+    while ( p < pattern.length() && pattern.charAt( p ) == '%' ) {
+      p++;
+    }
+    return p == pattern.length();
+  }
+
+  private static boolean same( final char a, final char b ) {
+    if ( a == b ) {
+      return true;
+    }
+    if ( a < 128 && b < 128 ) {
+      return Character.toLowerCase( a ) == Character.toLowerCase( b );
+    }
+    return false;
+  }
+
+  private static String blankToNull( final String value ) {
+    return value == null || "".equals( value ) ? null : value;
+  }
+}
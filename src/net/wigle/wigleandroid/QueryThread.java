@@ -1,26 +1,120 @@
 package net.wigle.wigleandroid;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
 
-public class QueryThread extends Thread {
-  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+/**
+ * runs ui queries off the ui thread, on a small fixed pool of workers so a quick lookup doesn't wait
+ * behind a slow search. each worker has its own read-only connection when the db is in wal mode, so
+ * they don't block each other or the writer, otherwise they share the writer's.
+ *
+ * requests run highest priority first, can be cancelled (checked between rows), and a request for
+ * the same sql and args as one that hasn't delivered a row yet rides along on that one's cursor.
+ *
+ * sql should be a template with ? for the values, bound by type from the args. the same template 
+ * then hits the connection's compiled statement cache (SQLiteDatabase keeps one per connection, keyed 
+ * by sql) instead of being parsed again, and numbers compare as numbers.
+ */
+public class QueryThread {
+  public static final int PRIORITY_HIGH = 0;
+  public static final int PRIORITY_NORMAL = 1;
+  public static final int PRIORITY_LOW = 2;
+  
+  private static final int WORKERS = 3;
+  
+  private final BlockingQueue<Execution> queue = new PriorityBlockingQueue<Execution>();
+  /** sql and args -&gt; execution that can still take more requests, guarded by itself */
+  private final Map<String,Execution> inFlight = new HashMap<String,Execution>();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
   private final AtomicBoolean done = new AtomicBoolean( false );
   private final DatabaseHelper dbHelper;
+  private final Worker[] workers = new Worker[WORKERS];
   
   public interface ResultHandler {
     public void handleRow( Cursor cursor );
     public void complete();
   }
+  /**
+   * takes rows a batch at a time, column by column in primitive arrays, for handlers that would
+   * otherwise allocate or post something per row. sits on top of the per-row api, so it coalesces
+   * and cancels like any other handler.
+   */
+  public static abstract class BatchHandler implements ResultHandler {
+    private final RowBatch batch;
+    
+    /**
+     * @param batchSize rows per handleBatch call, the last one can be short
+     * @param types the type of each column, see RowBatch
+     */
+    public BatchHandler( final int batchSize, final int... types ) {
+      batch = new RowBatch( batchSize, types );
+    }
+    
+    public final void handleRow( final Cursor cursor ) {
+      if ( batch.add( cursor ) ) {
+        handleBatch( batch );
+        batch.clear();
+      }
+    }
+    
+    public final void complete() {
+      if ( batch.size() > 0 ) {
+        handleBatch( batch );
+        batch.clear();
+      }
+      done();
+    }
+    
+    /**
+     * the batch and its arrays are reused, copy what you need before returning.
+     */
+    public abstract void handleBatch( RowBatch batch );
+    
+    /** after the last batch */
+    public abstract void done();
+  }
+  
   public static class Request {
     private final String sql;
+    private final Object[] args;
     private final ResultHandler handler;
+    private final int priority;
+    private volatile boolean cancelled = false;
     
     public Request( final String sql, final ResultHandler handler ) {
+      this( sql, null, handler, PRIORITY_NORMAL );
+    }
+    
+    public Request( final String sql, final ResultHandler handler, final int priority ) {
+      this( sql, null, handler, priority );
+    }
+    
+    public Request( final String sql, final Object[] args, final ResultHandler handler ) {
+      this( sql, args, handler, PRIORITY_NORMAL );
+    }
+    
+    /**
+     * @param sql the query, with a ? for each arg
+     * @param args values for the ?s: Long/Integer, Double/Float, String or null. can be null for none
+     * @param handler gets the rows
+     * @param priority one of PRIORITY_*
+     */
+    public Request( final String sql, final Object[] args, final ResultHandler handler, final int priority ) {
       if ( sql == null ) {
         throw new IllegalArgumentException( "sql is null" );
       }
@@ -28,52 +122,293 @@ public class QueryThread extends Thread {
         throw new IllegalArgumentException( "handler is null" );
       }
       this.sql = sql;
+      this.args = args;
       this.handler = handler;
+      this.priority = priority;
+    }
+    
+    /** what identical requests have in common */
+    private String getKey() {
+      if ( args == null || args.length == 0 ) {
+        return sql;
+      }
+      final StringBuilder key = new StringBuilder( sql );
+      for ( final Object arg : args ) {
+        // type matters to the comparison, so it matters to the key
+        key.append( '\0' ).append( arg == null ? "null" : arg.getClass().getSimpleName() ).append( ':' ).append( arg );
+      }
+      return key.toString();
+    }
+    
+    /**
+     * stop handing rows to this request's handler, it won't get complete() either. 
+     * any thread, any time, the cursor is dropped once nobody is left listening.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+    
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+  
+  /** one run of some sql, with every request that joined before its first row */
+  private static final class Execution implements Comparable<Execution> {
+    private final String key;
+    private final String sql;
+    private final Object[] args;
+    private final long sequence;
+    // guarded by inFlight
+    private int priority;
+    private final List<Request> requests = new ArrayList<Request>( 1 );
+    
+    public Execution( final Request request, final long sequence ) {
+      this.key = request.getKey();
+      this.sql = request.sql;
+      this.args = request.args;
+      this.sequence = sequence;
+      this.priority = request.priority;
+      requests.add( request );
+    }
+    
+    public int compareTo( final Execution other ) {
+      if ( priority != other.priority ) {
+        return priority < other.priority ? -1 : 1;
+      }
+      // fifo within a priority
+      return sequence < other.sequence ? -1 : ( sequence == other.sequence ? 0 : 1 );
     }
   }
   
   public QueryThread( final DatabaseHelper dbHelper ) {
     this.dbHelper = dbHelper;
-    setName( "query-" + getName() );
+    for ( int i = 0; i < WORKERS; i++ ) {
+      workers[i] = new Worker();
+    }
+  }
+  
+  public void start() {
+    for ( final Worker worker : workers ) {
+      worker.start();
+    }
   }
   
   public void setDone() {
     done.set( true );
+    for ( final Worker worker : workers ) {
+      worker.interrupt();
+    }
   }
   
   public void addToQueue( final Request request ) {
-    try {
-      queue.put( request );
+    final String key = request.getKey();
+    synchronized ( inFlight ) {
+      final Execution existing = inFlight.get( key );
+      if ( existing != null ) {
+        existing.requests.add( request );
+        if ( request.priority < existing.priority && queue.remove( existing ) ) {
+          // still waiting, move it up
+          existing.priority = request.priority;
+          queue.add( existing );
+        }
+        coalesced.incrementAndGet();
+        return;
+      }
+      final Execution execution = new Execution( request, sequence.incrementAndGet() );
+      inFlight.put( key, execution );
+      queue.add( execution );
     }
-    catch ( InterruptedException ex ) {
-      ListActivity.info( getName() + " interrupted" );
+  }
+  
+  /**
+   * @return requests that shared another's execution instead of running their own
+   */
+  public long getCoalescedCount() {
+    return coalesced.get();
+  }
+  
+  /**
+   * no more joiners once rows start coming out, a late one would miss the first.
+   * @return the live requests to deliver to
+   */
+  private Request[] startDelivery( final Execution execution ) {
+    synchronized ( inFlight ) {
+      if ( inFlight.get( execution.key ) == execution ) {
+        inFlight.remove( execution.key );
+      }
+      return execution.requests.toArray( new Request[execution.requests.size()] );
     }
   }
   
-  public void run() {
-    while ( ! done.get() ) {
+  /** 
+   * binds args by type as the cursor is made, rawQuery's selectionArgs only bind strings.
+   */
+  private static final class BindingCursorFactory implements SQLiteDatabase.CursorFactory {
+    private final Object[] args;
+    
+    public BindingCursorFactory( final Object[] args ) {
+      this.args = args;
+    }
+    
+    public Cursor newCursor( final SQLiteDatabase db, final SQLiteCursorDriver driver, final String editTable, 
+        final SQLiteQuery query ) {
+      for ( int i = 0; i < args.length; i++ ) {
+        bind( query, i + 1, args[i] );
+      }
+      return new SQLiteCursor( db, driver, editTable, query );
+    }
+  }
+  
+  private static void bind( final SQLiteProgram program, final int index, final Object arg ) {
+    if ( arg == null ) {
+      program.bindNull( index );
+    }
+    else if ( arg instanceof Double || arg instanceof Float ) {
+      program.bindDouble( index, ((Number) arg).doubleValue() );
+    }
+    else if ( arg instanceof Number ) {
+      program.bindLong( index, ((Number) arg).longValue() );
+    }
+    else {
+      program.bindString( index, arg.toString() );
+    }
+  }
+  
+  private static boolean anyLive( final Request[] requests ) {
+    for ( final Request request : requests ) {
+      if ( ! request.cancelled ) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private final class Worker extends Thread {
+    /** this worker's read-only connection, null when sharing the writer's */
+    private SQLiteDatabase reader;
+    private boolean triedReader = false;
+    
+    public Worker() {
+      setName( "query-" + getName() );
+    }
+    
+    public void run() {
+      while ( ! done.get() ) {
+        try {
+          final Execution execution = queue.take();
+          // if(true) throw new DBException("meh", new SQLiteException("meat puppets"));
+          if ( execution != null ) {
+            run( execution );
+          }
+        }
+        catch ( InterruptedException ex ) {
+          ListActivity.info( getName() + " interrupted" );
+        }
+        catch ( DBException ex ) {
+          dbHelper.deathDialog("query thread", ex);
+        }
+      }
+      closeReader();
+    }
+    
+    private void run( final Execution execution ) throws DBException {
+      Request[] requests = null;
+      synchronized ( inFlight ) {
+        requests = execution.requests.toArray( new Request[execution.requests.size()] );
+      }
       try {
-        final Request request = queue.take();
-        // if(true) throw new DBException("meh", new SQLiteException("meat puppets"));
-        if ( request != null ) {
-          final SQLiteDatabase db = dbHelper.getDB();
-          if ( db != null ) {
-            final Cursor cursor = db.rawQuery( request.sql, null );
-            while ( cursor.moveToNext() ) {
-              request.handler.handleRow( cursor );
+        if ( ! anyLive( requests ) ) {
+          // everyone left while it was queued, unless someone joined just now
+          requests = startDelivery( execution );
+          if ( ! anyLive( requests ) ) {
+            return;
+          }
+        }
+        Cursor cursor = null;
+        try {
+          final SQLiteDatabase db = getConnection();
+          if ( db == null ) {
+            return;
+          }
+          cursor = execution.args == null ? db.rawQuery( execution.sql, null )
+            : db.rawQueryWithFactory( new BindingCursorFactory( execution.args ), execution.sql, null, null );
+          // the first row is where the query does its work, anyone asking for the same thing meanwhile joins in
+          boolean hasRow = cursor.moveToNext();
+          requests = startDelivery( execution );
+          boolean live = anyLive( requests );
+          while ( hasRow && live ) {
+            for ( final Request request : requests ) {
+              if ( ! request.cancelled ) {
+                request.handler.handleRow( cursor );
+              }
             }
+            live = anyLive( requests );
+            hasRow = cursor.moveToNext();
+          }
+          if ( ! live ) {
+            ListActivity.info( getName() + " query cancelled: " + execution.sql );
+          }
+        }
+        catch ( final SQLiteException ex ) {
+          // this worker's reader has gone bad, get a new one for the next request. the handlers still
+          // get complete() with whatever rows came, or they'd wait on it forever
+          ListActivity.warn( getName() + " query exception: " + ex + " sql: " + execution.sql, ex );
+          closeCursor( cursor );
+          cursor = null;
+          closeReader();
+          requests = startDelivery( execution );
+        }
+        finally {
+          closeCursor( cursor );
+        }
+        for ( final Request request : requests ) {
+          if ( ! request.cancelled ) {
             request.handler.complete();
-            cursor.close();
           }
         }
       }
-      catch ( InterruptedException ex ) {
-        ListActivity.info( getName() + " interrupted" );
+      finally {
+        // never leave it joinable, whatever happened
+        startDelivery( execution );
+      }
+    }
+    
+    private SQLiteDatabase getConnection() throws DBException {
+      if ( reader != null && ! reader.isOpen() ) {
+        reader = null;
+        triedReader = false;
+      }
+      if ( ! triedReader ) {
+        reader = dbHelper.openReader();
+        triedReader = true;
+      }
+      return reader != null ? reader : dbHelper.getDB();
+    }
+    
+    private void closeCursor( final Cursor cursor ) {
+      if ( cursor != null ) {
+        try {
+          cursor.close();
+        }
+        catch ( SQLiteException ex ) {
+          ListActivity.info( getName() + " cursor close exception: " + ex );
+        }
       }
-      catch ( DBException ex ) {
-        dbHelper.deathDialog("query thread", ex);        
+    }
+    
+    private void closeReader() {
+      if ( reader != null ) {
+        try {
+          reader.close();
+        }
+        catch ( SQLiteException ex ) {
+          ListActivity.info( getName() + " reader close exception: " + ex );
+        }
+        reader = null;
       }
+      triedReader = false;
     }
   }
-  
+
 }
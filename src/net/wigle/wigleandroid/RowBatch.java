@@ -0,0 +1,139 @@
+package net.wigle.wigleandroid;
+
+import android.database.Cursor;
+
+/**
+ * a chunk of query rows stored column by column in primitive arrays, filled from a cursor and reused
+ * from one chunk to the next, so a handler can take thousands of rows without an object per row.
+ *
+ * not thread-safe, it belongs to one handler.
+ */
+public final class RowBatch {
+  public static final int INT = 0;
+  public static final int LONG = 1;
+  public static final int FLOAT = 2;
+  public static final int DOUBLE = 3;
+  public static final int STRING = 4;
+
+  private final int[] types;
+  /** one array per column, of the column's type */
+  private final Object[] columns;
+  private final int capacity;
+  private int size = 0;
+
+  /**
+   * @param capacity rows per batch
+   * @param types the type of each cursor column, in order, one of INT, LONG, FLOAT, DOUBLE, STRING
+   */
+  public RowBatch( final int capacity, final int... types ) {
+    if ( capacity <= 0 ) {
+      throw new IllegalArgumentException( "capacity must be positive: " + capacity );
+    }
+    this.capacity = capacity;
+    this.types = types.clone();
+    columns = new Object[types.length];
+    for ( int i = 0; i < types.length; i++ ) {
+      switch ( types[i] ) {
+        case INT:
+          columns[i] = new int[capacity];
+          break;
+        case LONG:
+          columns[i] = new long[capacity];
+          break;
+        case FLOAT:
+          columns[i] = new float[capacity];
+          break;
+        case DOUBLE:
+          columns[i] = new double[capacity];
+          break;
+        case STRING:
+          columns[i] = new String[capacity];
+          break;
+        default:
+          throw new IllegalArgumentException( "unknown type: " + types[i] + " for column: " + i );
+      }
+    }
+  }
+
+  /**
+   * copy the cursor's current row onto the end.
+   * @return true if that filled the batch
+   */
+  public boolean add( final Cursor cursor ) {
+    if ( size >= capacity ) {
+      throw new IllegalStateException( "batch is full" );
+    }
+    for ( int i = 0; i < types.length; i++ ) {
+      switch ( types[i] ) {
+        case INT:
+          ((int[]) columns[i])[size] = cursor.getInt( i );
+          break;
+        case LONG:
+          ((long[]) columns[i])[size] = cursor.getLong( i );
+          break;
+        case FLOAT:
+          ((float[]) columns[i])[size] = cursor.getFloat( i );
+          break;
+        case DOUBLE:
+          ((double[]) columns[i])[size] = cursor.getDouble( i );
+          break;
+        case STRING:
+          ((String[]) columns[i])[size] = cursor.getString( i );
+          break;
+      }
+    }
+    size++;
+    return size == capacity;
+  }
+
+  public void clear() {
+    for ( int i = 0; i < types.length; i++ ) {
+      if ( types[i] == STRING ) {
+        // don't hang on to the last batch's strings
+        final String[] strings = (String[]) columns[i];
+        for ( int row = 0; row < size; row++ ) {
+          strings[row] = null;
+        }
+      }
+    }
+    size = 0;
+  }
+
+  /**
+   * @return how many rows are in the batch, valid in each column from 0 up to this
+   */
+  public int size() {
+    return size;
+  }
+
+  public int capacity() {
+    return capacity;
+  }
+
+  public int[] getInts( final int column ) {
+    return (int[]) column( column, INT );
+  }
+
+  public long[] getLongs( final int column ) {
+    return (long[]) column( column, LONG );
+  }
+
+  public float[] getFloats( final int column ) {
+    return (float[]) column( column, FLOAT );
+  }
+
+  public double[] getDoubles( final int column ) {
+    return (double[]) column( column, DOUBLE );
+  }
+
+  public String[] getStrings( final int column ) {
+    return (String[]) column( column, STRING );
+  }
+
+  private Object column( final int column, final int type ) {
+    if ( types[column] != type ) {
+      throw new IllegalArgumentException( "column " + column + " is type: " + types[column] + " not: " + type );
+    }
+    return columns[column];
+  }
+}
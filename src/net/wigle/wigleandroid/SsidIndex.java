@@ -0,0 +1,251 @@
+package net.wigle.wigleandroid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * trigram index on network ssids, so ssid searches with a leading wildcard don't scan every network.
+ * every run of three characters of the ssid, A-Z lower-cased, with a boundary mark at each end, is a row of
+ * (gram, netkey) in ssidgram. a search pattern's grams must all be in a matching ssid, so a search walks
+ * the postings of its rarest gram, checks the rest by index lookup, then confirms with the original like,
+ * stopping as soon as it has enough.
+ *
+ * ssids don't change once a network is in, so grams are only added, when a network is inserted. networks
+ * from before the index existed are backfilled a batch at a time between drains, and searches scan the
+ * old way until that's done.
+ *
+ * everything but isReady and the sql builders is only called on the db thread.
+ */
+public final class SsidIndex {
+  public static final String GRAM_TABLE = "ssidgram";
+  /** the next netkey to backfill from, the row is gone once backfill is done */
+  private static final String BACKFILL_TABLE = "ssidgram_backfill";
+
+  private static final int BACKFILL_BATCH = 2000;
+  /** rows counted per gram when picking the rarest, enough to tell common from rare */
+  private static final int RARITY_CAP = 2000;
+  /** marks the start and end of an ssid, so patterns without a leading or trailing wildcard are anchored */
+  private static final char BOUNDARY = '\u0001';
+
+  private SQLiteStatement insertGram;
+  private final long[] grams = new long[256];
+  private volatile boolean ready = false;
+  private long backfillKey = Long.MIN_VALUE;
+
+  /**
+   * create the tables if needed, starting a backfill of the networks already in the db if the index is new.
+   */
+  public void open( final SQLiteDatabase db ) {
+    final boolean exists = hasTable( db, GRAM_TABLE );
+    if ( ! exists ) {
+      db.beginTransaction();
+      try {
+        db.execSQL( "create table " + GRAM_TABLE + " ( gram integer not null, netkey integer not null,"
+            + " primary key (gram, netkey) )" );
+        db.execSQL( "create table if not exists " + BACKFILL_TABLE + " ( _id integer primary key, netkey integer )" );
+        db.execSQL( "INSERT INTO " + BACKFILL_TABLE + " (_id,netkey) VALUES (1," + Long.MIN_VALUE + ")" );
+        db.setTransactionSuccessful();
+      }
+      finally {
+        db.endTransaction();
+      }
+    }
+    insertGram = db.compileStatement( "INSERT OR IGNORE INTO " + GRAM_TABLE + " (gram,netkey) VALUES (?,?)" );
+
+    ready = true;
+    if ( hasTable( db, BACKFILL_TABLE ) ) {
+      final Cursor cursor = db.rawQuery( "SELECT netkey FROM " + BACKFILL_TABLE + " WHERE _id = 1", (String[]) null );
+      if ( cursor.moveToFirst() ) {
+        backfillKey = cursor.getLong(0);
+        ready = false;
+        ListActivity.info( "ssid index backfilling from netkey: " + backfillKey );
+      }
+      cursor.close();
+    }
+  }
+
+  public void close() {
+    if ( insertGram != null ) {
+      insertGram.close();
+    }
+  }
+
+  /**
+   * @return true once every network is indexed, until then searches have to scan
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  public boolean isBackfilling() {
+    return ! ready;
+  }
+
+  /**
+   * index a new network's ssid, inside the insert's transaction.
+   */
+  public void add( final long netKey, final String ssid ) {
+    final int count = grams( ssid, true, true, grams );
+    for ( int i = 0; i < count; i++ ) {
+      insertGram.bindLong( 1, grams[i] );
+      insertGram.bindLong( 2, netKey );
+      insertGram.execute();
+    }
+  }
+
+  /**
+   * index the next BACKFILL_BATCH networks, in its own transaction. between drains only.
+   */
+  public void backfillStep( final SQLiteDatabase db, final String networkTable ) {
+    final long start = System.currentTimeMillis();
+    int indexed = 0;
+    db.beginTransaction();
+    try {
+      final Cursor cursor = db.rawQuery( "SELECT netkey,ssid FROM " + networkTable
+          + " WHERE netkey > ? ORDER BY netkey LIMIT " + BACKFILL_BATCH, new String[]{ Long.toString( backfillKey ) } );
+      long lastKey = backfillKey;
+      while ( cursor.moveToNext() ) {
+        lastKey = cursor.getLong(0);
+        add( lastKey, cursor.getString(1) );
+        indexed++;
+      }
+      cursor.close();
+      if ( indexed < BACKFILL_BATCH ) {
+        db.execSQL( "DROP TABLE " + BACKFILL_TABLE );
+      }
+      else {
+        db.execSQL( "UPDATE " + BACKFILL_TABLE + " SET netkey = " + lastKey + " WHERE _id = 1" );
+      }
+      db.setTransactionSuccessful();
+      backfillKey = lastKey;
+    }
+    finally {
+      db.endTransaction();
+    }
+    if ( indexed < BACKFILL_BATCH ) {
+      ready = true;
+      ListActivity.info( "ssid index backfill done" );
+    }
+    ListActivity.info( "ssid index backfilled " + indexed + " in " + (System.currentTimeMillis() - start) + "ms" );
+  }
+
+  /**
+   * the sql for networks whose ssid matches a like pattern, walking the index.
+   * @param pattern a like pattern, % and _ wildcards, case-insensitive like sqlite's like
+   * @param columns what to select from network2, aliased n
+   * @param extraWhere more conditions on n, starting with AND, or ""
+   * @param extraArgs the args for extraWhere, can be null
+   * @param limit how many rows at most
+   * @param args filled with the args for the sql, in order
+   * @return the sql, or null if the pattern has no grams to look up (under three characters), scan instead
+   */
+  public static String searchSql( final String pattern, final String columns, final String extraWhere,
+      final List<Object> extraArgs, final int limit, final List<Object> args ) {
+
+    final List<Long> patternGrams = patternGrams( pattern );
+    if ( patternGrams.isEmpty() ) {
+      return null;
+    }
+    final StringBuilder sql = new StringBuilder( "SELECT " ).append( columns ).append( " FROM " )
+      .append( GRAM_TABLE ).append( " g, " ).append( DatabaseHelper.NETWORK_V2_TABLE ).append( " n" );
+    // walk the rarest gram's postings, capped counts are enough to pick it
+    sql.append( " WHERE g.gram = (SELECT gram FROM (" );
+    for ( int i = 0; i < patternGrams.size(); i++ ) {
+      sql.append( i == 0 ? "SELECT ? AS gram" : " UNION ALL SELECT ?" );
+      args.add( patternGrams.get( i ) );
+    }
+    sql.append( ") p ORDER BY (SELECT count(*) FROM (SELECT 1 FROM " ).append( GRAM_TABLE )
+      .append( " c WHERE c.gram = p.gram LIMIT " ).append( RARITY_CAP ).append( ")) LIMIT 1)" );
+    sql.append( " AND n.netkey = g.netkey" );
+    // every gram has to be there, the walked one included is one cheap lookup
+    for ( final Long gram : patternGrams ) {
+      sql.append( " AND EXISTS (SELECT 1 FROM " ).append( GRAM_TABLE ).append( " x WHERE x.gram = ? AND x.netkey = g.netkey)" );
+      args.add( gram );
+    }
+    // grams can match out of order, like has the final say
+    sql.append( " AND n.ssid like ?" );
+    args.add( pattern );
+    sql.append( ' ' ).append( extraWhere );
+    if ( extraArgs != null ) {
+      args.addAll( extraArgs );
+    }
+    sql.append( " LIMIT " ).append( limit );
+    return sql.toString();
+  }
+
+  /**
+   * the distinct grams every ssid matching a like pattern has
+   */
+  private static List<Long> patternGrams( final String pattern ) {
+    final List<Long> result = new ArrayList<Long>();
+    final long[] fragmentGrams = new long[pattern.length() + 2];
+    int fragmentStart = 0;
+    for ( int i = 0; i <= pattern.length(); i++ ) {
+      if ( i == pattern.length() || pattern.charAt( i ) == '%' || pattern.charAt( i ) == '_' ) {
+        // a wildcard-free fragment, anchored if it's at the start or end of the pattern
+        final boolean anchorStart = fragmentStart == 0;
+        final boolean anchorEnd = i == pattern.length();
+        final int count = grams( pattern.substring( fragmentStart, i ), anchorStart, anchorEnd, fragmentGrams );
+        for ( int g = 0; g < count; g++ ) {
+          final Long gram = fragmentGrams[g];
+          if ( ! result.contains( gram ) ) {
+            result.add( gram );
+          }
+        }
+        fragmentStart = i + 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * the distinct grams of some text, with optional boundary marks. only A-Z are lower-cased, a char at a
+   * time, as sqlite's like only folds ascii: toLowerCase would fold other letters like wants kept apart,
+   * and depends on the letters around them (greek final sigma).
+   * @param out filled with the grams, needs room for text.length() + 2
+   * @return how many
+   */
+  private static int grams( final String text, final boolean anchorStart, final boolean anchorEnd,
+      final long[] out ) {
+
+    final int length = text.length() + ( anchorStart ? 1 : 0 ) + ( anchorEnd ? 1 : 0 );
+    int count = 0;
+    for ( int i = 0; i + 3 <= length; i++ ) {
+      final long gram = ( (long) charAt( text, i, anchorStart ) << 32 )
+        | ( (long) charAt( text, i + 1, anchorStart ) << 16 ) | charAt( text, i + 2, anchorStart );
+      boolean seen = false;
+      for ( int j = 0; j < count && ! seen; j++ ) {
+        seen = out[j] == gram;
+      }
+      if ( ! seen && count < out.length ) {
+        out[count++] = gram;
+      }
+    }
+    return count;
+  }
+
+  /** the folded char at index of the boundary-marked text, without building it */
+  private static char charAt( final String text, final int index, final boolean anchorStart ) {
+    if ( anchorStart && index == 0 ) {
+      return BOUNDARY;
+    }
+    final int offset = index - ( anchorStart ? 1 : 0 );
+    if ( offset >= text.length() ) {
+      return BOUNDARY;
+    }
+    final char c = text.charAt( offset );
+    return c >= 'A' && c <= 'Z' ? (char) ( c + ( 'a' - 'A' ) ) : c;
+  }
+
+  private static boolean hasTable( final SQLiteDatabase db, final String table ) {
+    final Cursor cursor = db.rawQuery( "SELECT name FROM sqlite_master WHERE type='table' AND name=?",
+        new String[]{ table } );
+    final boolean has = cursor.moveToFirst();
+    cursor.close();
+    return has;
+  }
+}
@@ -0,0 +1,71 @@
+package net.wigle.wigleandroid;
+
+/**
+ * the networks a db transaction wrote to, with the ssid and position each was written with, handed to
+ * commit listeners once it's committed. arrays are reused from one transaction to the next, so listeners
+ * mustn't hold on to it. a network can be in here more than once.
+ *
+ * db thread only.
+ */
+public final class TouchedNetworks {
+  private String[] bssids = new String[64];
+  private String[] ssids = new String[64];
+  private double[] lats = new double[64];
+  private double[] lons = new double[64];
+  private int size = 0;
+
+  public void add( final String bssid, final String ssid, final double lat, final double lon ) {
+    if ( size == bssids.length ) {
+      grow();
+    }
+    bssids[size] = bssid;
+    ssids[size] = ssid;
+    lats[size] = lat;
+    lons[size] = lon;
+    size++;
+  }
+
+  public void clear() {
+    for ( int i = 0; i < size; i++ ) {
+      bssids[i] = null;
+      ssids[i] = null;
+    }
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String getBssid( final int index ) {
+    return bssids[index];
+  }
+
+  public String getSsid( final int index ) {
+    return ssids[index];
+  }
+
+  public double getLat( final int index ) {
+    return lats[index];
+  }
+
+  public double getLon( final int index ) {
+    return lons[index];
+  }
+
+  private void grow() {
+    final int capacity = bssids.length * 2;
+    final String[] newBssids = new String[capacity];
+    final String[] newSsids = new String[capacity];
+    final double[] newLats = new double[capacity];
+    final double[] newLons = new double[capacity];
+    System.arraycopy( bssids, 0, newBssids, 0, size );
+    System.arraycopy( ssids, 0, newSsids, 0, size );
+    System.arraycopy( lats, 0, newLats, 0, size );
+    System.arraycopy( lons, 0, newLons, 0, size );
+    bssids = newBssids;
+    ssids = newSsids;
+    lats = newLats;
+    lons = newLons;
+  }
+}
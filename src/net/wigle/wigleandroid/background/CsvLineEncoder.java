@@ -0,0 +1,315 @@
+package net.wigle.wigleandroid.background;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * writes WigleWifi-1.4 csv lines straight into a reusable byte array, ISO-8859-1 like the rest of the
+ * file, the same bytes NumberFormat, SimpleDateFormat and a CharsetEncoder made one field at a time.
+ *
+ * doubles get the fewest digits that read back as the same double, when that's 15 significant digits or
+ * less. that's what DecimalFormat shows on both the jdk, which prints the shortest digits, and android's
+ * icu, which has printed the shortest digits or rounded to 15 (DBL_DIG) depending on the version: with
+ * 15 or fewer there's only one decimal that reads back, so both agree. anything else (more digits, tiny,
+ * huge, negative zero, not a number) goes through the platform's DecimalFormat itself.
+ *
+ * timestamps are formatted once a minute and the seconds filled in, where the time zone's offset is whole
+ * minutes and the locale's digits are ascii, otherwise by SimpleDateFormat.
+ *
+ * ssid commas become underscores as they're copied. chars past 0xff are written as '?', as the encoder's
+ * REPLACE did, a surrogate pair being one char. a lone surrogate is a '?' too, where the encoder used to
+ * stop, dropping the rest of the line.
+ *
+ * lines pile up until written out. not thread safe.
+ */
+public final class CsvLineEncoder {
+  private static final byte COMMA = ',';
+  private static final byte NEWLINE = '\n';
+  private static final byte REPLACEMENT = '?';
+  /** past this the decimal might not be the only one for its double, let DecimalFormat decide */
+  private static final long MAX_FAST_DIGITS = 1000000000000000L;
+  private static final int MAX_FAST_FRACTION = 15;
+  private static final double[] POWERS_OF_TEN = new double[MAX_FAST_FRACTION + 1];
+  private static final long[] LONG_POWERS_OF_TEN = new long[MAX_FAST_FRACTION + 1];
+  static {
+    double power = 1d;
+    long longPower = 1L;
+    for ( int i = 0; i <= MAX_FAST_FRACTION; i++ ) {
+      POWERS_OF_TEN[i] = power;
+      LONG_POWERS_OF_TEN[i] = longPower;
+      power *= 10d;
+      longPower *= 10L;
+    }
+  }
+  private static final int MINUTE_MILLIS = 60000;
+  /** "yyyy-MM-dd HH:mm:" */
+  private static final int MINUTE_PREFIX = 17;
+  private static final int TIMESTAMP = MINUTE_PREFIX + 2;
+
+  private byte[] buffer = new byte[8192];
+  private int length = 0;
+
+  // the slow paths, and what they share
+  private final NumberFormat numberFormat;
+  private final SimpleDateFormat dateFormat;
+  private final TimeZone timeZone;
+  private final StringBuffer stringBuffer = new StringBuffer();
+  private final FieldPosition fieldPosition = new FieldPosition( NumberFormat.INTEGER_FIELD );
+  private final Date date = new Date();
+
+  // the minute last formatted, with its "yyyy-MM-dd HH:mm:"
+  private long cachedMinute = Long.MIN_VALUE;
+  /** the minute last found not to fit, so it isn't formatted twice a row */
+  private long slowMinute = Long.MIN_VALUE;
+  private final byte[] minutePrefix = new byte[MINUTE_PREFIX];
+
+  public CsvLineEncoder() {
+    this( TimeZone.getDefault() );
+  }
+
+  public CsvLineEncoder( final TimeZone timeZone ) {
+    this.timeZone = timeZone;
+    numberFormat = NumberFormat.getNumberInstance( Locale.US );
+    // no commas in the comma-separated file
+    numberFormat.setGroupingUsed( false );
+    if ( numberFormat instanceof DecimalFormat ) {
+      ((DecimalFormat) numberFormat).setMaximumFractionDigits( 16 );
+    }
+    dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
+    dateFormat.setTimeZone( timeZone );
+  }
+
+  /**
+   * add a line: MAC,SSID,AuthMode,FirstSeen,Channel,RSSI,CurrentLatitude,CurrentLongitude,AltitudeMeters,
+   * AccuracyMeters,Type
+   * @return how many bytes the line took
+   */
+  public int line( final String bssid, final String ssid, final String capabilities, final long time,
+      final int channel, final int level, final double lat, final double lon, final double altitude,
+      final double accuracy, final String type ) {
+
+    final int start = length;
+    appendString( bssid, false );
+    append( COMMA );
+    appendString( ssid, true );
+    append( COMMA );
+    appendString( capabilities, false );
+    append( COMMA );
+    appendTime( time );
+    append( COMMA );
+    appendLong( channel );
+    append( COMMA );
+    appendLong( level );
+    append( COMMA );
+    appendDouble( lat );
+    append( COMMA );
+    appendDouble( lon );
+    append( COMMA );
+    appendDouble( altitude );
+    append( COMMA );
+    appendDouble( accuracy );
+    append( COMMA );
+    appendString( type, false );
+    append( NEWLINE );
+    return length - start;
+  }
+
+  /**
+   * @return bytes waiting to be written
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * write out and forget what's waiting
+   */
+  public void writeTo( final OutputStream out ) throws IOException {
+    if ( length > 0 ) {
+      out.write( buffer, 0, length );
+      length = 0;
+    }
+  }
+
+  /**
+   * forget what's waiting without writing it
+   */
+  public void clear() {
+    length = 0;
+  }
+
+  private void ensure( final int more ) {
+    if ( length + more > buffer.length ) {
+      final byte[] bigger = new byte[Math.max( buffer.length * 2, length + more )];
+      System.arraycopy( buffer, 0, bigger, 0, length );
+      buffer = bigger;
+    }
+  }
+
+  private void append( final byte b ) {
+    ensure( 1 );
+    buffer[length++] = b;
+  }
+
+  private void appendString( final String value, final boolean escapeCommas ) {
+    if ( value == null ) {
+      return;
+    }
+    final int count = value.length();
+    ensure( count );
+    for ( int i = 0; i < count; i++ ) {
+      final char c = value.charAt( i );
+      if ( c < 0x100 ) {
+        buffer[length++] = escapeCommas && c == ',' ? (byte) '_' : (byte) c;
+      }
+      else {
+        if ( Character.isHighSurrogate( c ) && i + 1 < count && Character.isLowSurrogate( value.charAt( i + 1 ) ) ) {
+          // one code point, one replacement
+          i++;
+        }
+        buffer[length++] = REPLACEMENT;
+      }
+    }
+  }
+
+  private void appendLong( long value ) {
+    // sign, and Long.MIN_VALUE's 19 digits
+    ensure( 20 );
+    if ( value < 0 ) {
+      buffer[length++] = '-';
+      if ( value == Long.MIN_VALUE ) {
+        appendAscii( "9223372036854775808" );
+        return;
+      }
+      value = -value;
+    }
+    appendDigits( value, digitCount( value ) );
+  }
+
+  /**
+   * the digits of a non-negative value, left padded with zeros to width
+   */
+  private void appendDigits( long value, final int width ) {
+    ensure( width );
+    for ( int i = length + width - 1; i >= length; i-- ) {
+      buffer[i] = (byte) ( '0' + ( value % 10L ) );
+      value /= 10L;
+    }
+    length += width;
+  }
+
+  private static int digitCount( final long value ) {
+    int digits = 1;
+    for ( long rest = value / 10L; rest > 0L; rest /= 10L ) {
+      digits++;
+    }
+    return digits;
+  }
+
+  private void appendDouble( final double value ) {
+    if ( value == 0d && 1d / value > 0d ) {
+      append( (byte) '0' );
+      return;
+    }
+    final double magnitude = Math.abs( value );
+    // negative zero's sign is the formatter's business
+    if ( magnitude < MAX_FAST_DIGITS && magnitude > 0d ) {
+      // the fewest fraction digits that read back as the same double
+      for ( int fraction = 0; fraction <= MAX_FAST_FRACTION; fraction++ ) {
+        final double scaled = magnitude * POWERS_OF_TEN[fraction];
+        if ( scaled >= MAX_FAST_DIGITS ) {
+          break;
+        }
+        final long digits = Math.round( scaled );
+        if ( digits / POWERS_OF_TEN[fraction] == magnitude ) {
+          if ( value < 0d ) {
+            append( (byte) '-' );
+          }
+          final long power = LONG_POWERS_OF_TEN[fraction];
+          appendLong( digits / power );
+          if ( fraction > 0 ) {
+            append( (byte) '.' );
+            appendDigits( digits % power, fraction );
+          }
+          return;
+        }
+      }
+    }
+    stringBuffer.setLength( 0 );
+    numberFormat.format( value, stringBuffer, fieldPosition );
+    appendStringBuffer();
+  }
+
+  private void appendTime( final long time ) {
+    // floor, for times before 1970
+    final long minute = time >= 0L ? time / MINUTE_MILLIS : -( ( -time + MINUTE_MILLIS - 1 ) / MINUTE_MILLIS );
+    final long minuteStart = minute * MINUTE_MILLIS;
+    if ( minute != cachedMinute && ( minute == slowMinute || ! cacheMinute( minute, minuteStart ) ) ) {
+      date.setTime( time );
+      stringBuffer.setLength( 0 );
+      dateFormat.format( date, stringBuffer, fieldPosition );
+      appendStringBuffer();
+      return;
+    }
+    ensure( TIMESTAMP );
+    System.arraycopy( minutePrefix, 0, buffer, length, MINUTE_PREFIX );
+    length += MINUTE_PREFIX;
+    appendDigits( ( time - minuteStart ) / 1000L, 2 );
+  }
+
+  /**
+   * @return false if the minute can't be done as a prefix and seconds
+   */
+  private boolean cacheMinute( final long minute, final long minuteStart ) {
+    cachedMinute = Long.MIN_VALUE;
+    slowMinute = minute;
+    final int offset = timeZone.getOffset( minuteStart );
+    if ( offset % MINUTE_MILLIS != 0 || offset != timeZone.getOffset( minuteStart + MINUTE_MILLIS - 1 ) ) {
+      // the local minute doesn't line up with this one
+      return false;
+    }
+    date.setTime( minuteStart );
+    stringBuffer.setLength( 0 );
+    dateFormat.format( date, stringBuffer, fieldPosition );
+    if ( stringBuffer.length() != TIMESTAMP ) {
+      // years past 9999 and the like
+      return false;
+    }
+    for ( int i = 0; i < TIMESTAMP; i++ ) {
+      if ( stringBuffer.charAt( i ) >= 0x80 ) {
+        // a locale's own digits (ar_EG, fa_IR), the seconds would have to be those too
+        return false;
+      }
+    }
+    for ( int i = 0; i < MINUTE_PREFIX; i++ ) {
+      minutePrefix[i] = (byte) stringBuffer.charAt( i );
+    }
+    cachedMinute = minute;
+    slowMinute = Long.MIN_VALUE;
+    return true;
+  }
+
+  private void appendStringBuffer() {
+    final int count = stringBuffer.length();
+    ensure( count );
+    for ( int i = 0; i < count; i++ ) {
+      final char c = stringBuffer.charAt( i );
+      buffer[length++] = c < 0x100 ? (byte) c : REPLACEMENT;
+    }
+  }
+
+  private void appendAscii( final String value ) {
+    final int count = value.length();
+    ensure( count );
+    for ( int i = 0; i < count; i++ ) {
+      buffer[length++] = (byte) value.charAt( i );
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package net.wigle.wigleandroid.background;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -9,21 +10,18 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.UnknownHostException;
-import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
-import java.text.DateFormat;
-import java.text.DecimalFormat;
-import java.text.FieldPosition;
-import java.text.NumberFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPOutputStream;
 
 import net.wigle.wigleandroid.DBException;
@@ -31,6 +29,7 @@ import net.wigle.wigleandroid.DatabaseHelper;
 import net.wigle.wigleandroid.ListActivity;
 import net.wigle.wigleandroid.MainActivity;
 import net.wigle.wigleandroid.Network;
+import net.wigle.wigleandroid.NetworkType;
 import net.wigle.wigleandroid.R;
 import android.content.Context;
 import android.content.SharedPreferences;
@@ -39,19 +38,28 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Process;
 
 public final class FileUploaderTask extends AbstractBackgroundTask {
   private final FileUploaderListener listener;
   private final boolean justWriteFile;
   private boolean writeWholeDb;
   private boolean writeRunOnly;
+  private boolean streamUpload;
+  private boolean keepFile;
   
-  private static final String COMMA = ",";
-  private static final String NEWLINE = "\n";
+  /** lines are written out in about this much */
+  private static final int WRITE_BYTES = 8192;
+  /** location _ids per partition of a parallel export, a few hundred kB gzipped */
+  private static final long PARTITION_IDS = 20000L;
+  private static final int MAX_WORKERS = 4;
+  /** rows per read of a sequential export */
+  private static final int EXPORT_PAGE = 5000;
   
   private static class CountStats {
     int byteCount;
@@ -78,6 +86,15 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
     this.writeRunOnly = true;
   }
   
+  /**
+   * upload while writing, the gzip going straight down the connection instead of to a file that's then read back
+   * @param keepFile also write what's sent to the usual file, as a local copy
+   */
+  public void setStreamUpload( final boolean keepFile ) {
+    this.streamUpload = true;
+    this.keepFile = keepFile;
+  }
+  
   public void subRun() {
     try {      
       if ( justWriteFile ) {
@@ -115,8 +132,15 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
   
   public static OutputStream getOutputStream(final Context context, final Bundle bundle, final Object[] fileFilename)
       throws IOException {
-    final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
-    final String filename = "WigleWifi_" + fileDateFormat.format(new Date()) + ".csv.gz";
+    return new GZIPOutputStream( openFile( context, bundle, fileFilename ) );
+  }
+  
+  /**
+   * the same file as getOutputStream, without the gzip, for writing gzip members to
+   */
+  private static OutputStream openFile(final Context context, final Bundle bundle, final Object[] fileFilename)
+      throws IOException {
+    final String filename = newFilename();
     
     String openString = filename;
     final boolean hasSD = ListActivity.hasSD();
@@ -138,10 +162,14 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
     final FileOutputStream rawFos = hasSD ? new FileOutputStream( file )
       : context.openFileOutput( filename, Context.MODE_WORLD_READABLE );
 
-    final GZIPOutputStream fos = new GZIPOutputStream( rawFos );
     fileFilename[0] = file;
     fileFilename[1] = filename;
-    return fos;
+    return rawFos;
+  }
+  
+  private static String newFilename() {
+    final SimpleDateFormat fileDateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
+    return "WigleWifi_" + fileDateFormat.format(new Date()) + ".csv.gz";
   }
   
   private Status doUpload( final String username, final String password, final Bundle bundle ) 
@@ -150,8 +178,12 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
     Status status = Status.UNKNOWN;
     
     try {
+      if ( streamUpload ) {
+        return streamUpload( username, password, bundle );
+      }
+      
       final Object[] fileFilename = new Object[2];
-      final OutputStream fos = getOutputStream( context, bundle, fileFilename );
+      final OutputStream fos = openFile( context, bundle, fileFilename );
       final File file = (File) fileFilename[0];
       final String filename = (String) fileFilename[1];
 
@@ -183,51 +215,12 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
       final boolean hasSD = ListActivity.hasSD();
       final FileInputStream fis = hasSD ? new FileInputStream( file ) 
         : context.openFileInput( filename ); 
-      final Map<String,String> params = new HashMap<String,String>();
-      
-      params.put("observer", username);
-      params.put("password", password);
-      final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
-      if ( prefs.getBoolean(ListActivity.PREF_DONATE, false) ) {
-        params.put("donate","on");
-      }
+      final Map<String,String> params = uploadParams( username, password );
       final String response = HttpFileUploader.upload( 
         ListActivity.FILE_POST_URL, filename, "stumblefile", fis, 
         params, context.getResources(), getHandler(), filesize, context );
       
-      if ( ! prefs.getBoolean(ListActivity.PREF_DONATE, false) ) {
-        if ( response != null && response.indexOf("donate=Y") > 0 ) {
-          final Editor editor = prefs.edit();
-          editor.putBoolean( ListActivity.PREF_DONATE, true );
-          editor.commit();
-        }
-      }
-      
-      if ( response != null && response.indexOf("uploaded successfully") > 0 ) {
-        status = Status.SUCCESS;
-        
-        // save in the prefs        
-        final Editor editor = prefs.edit();
-        editor.putLong( ListActivity.PREF_DB_MARKER, maxId );
-        editor.putLong( ListActivity.PREF_MAX_DB, maxId );
-        editor.putLong( ListActivity.PREF_NETS_UPLOADED, dbHelper.getNetworkCount() );
-        editor.commit();
-      }
-      else if ( response != null && response.indexOf("does not match login") > 0 ) {
-        status = Status.BAD_LOGIN;
-      }
-      else {
-        String error = null;
-        if ( response != null && response.trim().equals( "" ) ) {
-          error = "no response from server";
-        } 
-        else {
-          error = "response: " + response;
-        }
-        ListActivity.error( error );
-        bundle.putString( BackgroundGuiHandler.ERROR, error );
-        status = Status.FAIL;
-      }
+      status = uploaded( response, maxId, bundle );
     } 
     catch ( final InterruptedException ex ) {
       throw ex;
@@ -277,6 +270,111 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
     return status;
   }
   
+  /**
+   * encoder, gzip and the multipart body straight to the connection, teed to the usual file if keepFile.
+   * there's no file to look at after, so empty is checked up front.
+   */
+  private Status streamUpload( final String username, final String password, final Bundle bundle ) 
+      throws IOException, NameNotFoundException, InterruptedException, DBException {
+    
+    // don't upload empty files
+    if ( dbHelper.getMaxLocationId() <= startId() && ! "bobzilla".equals(username) ) {
+      return Status.EMPTY_FILE;
+    }
+    
+    final Object[] fileFilename = new Object[2];
+    final OutputStream archive = keepFile ? openFile( context, bundle, fileFilename ) : null;
+    final String filename = keepFile ? (String) fileFilename[1] : newFilename();
+    final HttpFileUploader.StreamingUpload upload;
+    try {
+      upload = HttpFileUploader.startUpload( ListActivity.FILE_POST_URL, filename, "stumblefile", 
+        uploadParams( username, password ), context.getResources() );
+    }
+    catch ( final IOException ex ) {
+      if ( archive != null ) {
+        archive.close();
+      }
+      throw ex;
+    }
+    
+    String response = null;
+    long maxId = 0L;
+    try {
+      final OutputStream body = archive == null ? upload.getOutputStream() 
+        : new TeeOutputStream( upload.getOutputStream(), archive );
+      // closes body, which leaves the connection open for finish
+      maxId = writeFile( body, bundle, new CountStats() );
+      
+      // show on the UI, waiting on the server now
+      sendBundledMessage( Status.UPLOADING.ordinal(), bundle );
+      response = upload.finish();
+    }
+    finally {
+      if ( response == null ) {
+        upload.abort();
+        if ( archive != null ) {
+          archive.close();
+        }
+      }
+    }
+    
+    return uploaded( response, maxId, bundle );
+  }
+  
+  private Map<String,String> uploadParams( final String username, final String password ) {
+    final Map<String,String> params = new HashMap<String,String>();
+    
+    params.put("observer", username);
+    params.put("password", password);
+    final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
+    if ( prefs.getBoolean(ListActivity.PREF_DONATE, false) ) {
+      params.put("donate","on");
+    }
+    return params;
+  }
+  
+  /**
+   * what the server said about the upload, saving the marker if it took
+   */
+  private Status uploaded( final String response, final long maxId, final Bundle bundle ) {
+    Status status = null;
+    final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
+    if ( ! prefs.getBoolean(ListActivity.PREF_DONATE, false) ) {
+      if ( response != null && response.indexOf("donate=Y") > 0 ) {
+        final Editor editor = prefs.edit();
+        editor.putBoolean( ListActivity.PREF_DONATE, true );
+        editor.commit();
+      }
+    }
+    
+    if ( response != null && response.indexOf("uploaded successfully") > 0 ) {
+      status = Status.SUCCESS;
+      
+      // save in the prefs        
+      final Editor editor = prefs.edit();
+      editor.putLong( ListActivity.PREF_DB_MARKER, maxId );
+      editor.putLong( ListActivity.PREF_MAX_DB, maxId );
+      editor.putLong( ListActivity.PREF_NETS_UPLOADED, dbHelper.getNetworkCount() );
+      editor.commit();
+    }
+    else if ( response != null && response.indexOf("does not match login") > 0 ) {
+      status = Status.BAD_LOGIN;
+    }
+    else {
+      String error = null;
+      if ( response != null && response.trim().equals( "" ) ) {
+        error = "no response from server";
+      } 
+      else {
+        error = "response: " + response;
+      }
+      ListActivity.error( error );
+      bundle.putString( BackgroundGuiHandler.ERROR, error );
+      status = Status.FAIL;
+    }
+    return status;
+  }
+  
   public static boolean hasDataConnection(final Context context) {
     final ConnectivityManager connMgr = 
         (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
@@ -299,7 +397,7 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
     try {
       OutputStream fos = null;
       try {
-        fos = getOutputStream( context, bundle, new Object[2] );
+        fos = openFile( context, bundle, new Object[2] );
         writeFile( fos, bundle, countStats );
         // show on the UI
         status = Status.WRITE_SUCCESS;
@@ -332,219 +430,408 @@ public final class FileUploaderTask extends AbstractBackgroundTask {
     return status;
   }
   
-  private long writeFile( final OutputStream fos, final Bundle bundle, final CountStats countStats ) 
+  /**
+   * @param rawFos the file, not gzipped yet, closed when done
+   */
+  private long writeFile( final OutputStream rawFos, final Bundle bundle, final CountStats countStats ) 
       throws IOException, NameNotFoundException, InterruptedException, DBException {
     
-    final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
-    long maxId = prefs.getLong( ListActivity.PREF_DB_MARKER, 0L );
-    if ( writeWholeDb ) {
-      maxId = 0;
-    }
-    else if ( writeRunOnly ) {
-      // max id at startup
-      maxId = prefs.getLong( ListActivity.PREF_MAX_DB, 0L );
-    }
+    final long maxId = startId();
     ListActivity.info( "Writing file starting with observation id: " + maxId);
-    final Cursor cursor = dbHelper.locationIterator( maxId );
+    final int workers = Math.min( MAX_WORKERS, Runtime.getRuntime().availableProcessors() );
+    if ( writeWholeDb && workers > 1 && ! dbHelper.isLocationsMigrating() ) {
+      try {
+        return writeParallel( rawFos, bundle, countStats, maxId, workers );
+      }
+      finally {
+        rawFos.close();
+      }
+    }
     
+    final OutputStream fos = new GZIPOutputStream( rawFos );
     try {
-      return writeFileWithCursor( fos, bundle, countStats, cursor );
+      return writePages( fos, bundle, countStats, maxId );
     }
     finally {
       fos.close();
-      cursor.close();
     }
   }
   
-  private long writeFileWithCursor( final OutputStream fos, final Bundle bundle, final CountStats countStats, 
-      final Cursor cursor ) throws IOException, NameNotFoundException, InterruptedException {
+  /**
+   * @return the observation id the file starts after
+   */
+  private long startId() {
+    final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
+    if ( writeWholeDb ) {
+      return 0L;
+    }
+    if ( writeRunOnly ) {
+      // max id at startup
+      return prefs.getLong( ListActivity.PREF_MAX_DB, 0L );
+    }
+    return prefs.getLong( ListActivity.PREF_DB_MARKER, 0L );
+  }
+  
+  /**
+   * EXPORT_PAGE rows at a time after the last one written, by _id, so writing starts right away and only a 
+   * page is ever held. while v1 locations are still being migrated their pages are merged in by _id.
+   */
+  private long writePages( final OutputStream fos, final Bundle bundle, final CountStats countStats, 
+      final long fromId ) throws IOException, NameNotFoundException, InterruptedException, DBException {
 
     final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
     long maxId = prefs.getLong( ListActivity.PREF_DB_MARKER, 0L );
     
     final long start = System.currentTimeMillis();
-    final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
     countStats.lineCount = 0;
-    final int total = cursor.getCount();
     long fileWriteMillis = 0;
-    long netMillis = 0;
     
     sendBundledMessage( Status.WRITING.ordinal(), bundle );
     
-    final PackageManager pm = context.getPackageManager();
-    final PackageInfo pi = pm.getPackageInfo(context.getPackageName(), 0);
-    
-    // name, version, header
-    final String header = "WigleWifi-1.4"
-        + ",appRelease=" + pi.versionName
-        + ",model=" + android.os.Build.MODEL
-        + ",release=" + android.os.Build.VERSION.RELEASE
-        + ",device=" + android.os.Build.DEVICE
-        + ",display=" + android.os.Build.DISPLAY
-        + ",board=" + android.os.Build.BOARD
-        + ",brand=" + android.os.Build.BRAND
-        + "\n" 
-        + "MAC,SSID,AuthMode,FirstSeen,Channel,RSSI,CurrentLatitude,CurrentLongitude,AltitudeMeters,AccuracyMeters,Type\n";
+    final String header = header();
     writeFos( fos, header );
     
     // assume header is all byte per char
     countStats.byteCount = header.length();
-
-    if ( total > 0 ) {
-      CharBuffer charBuffer = CharBuffer.allocate( 256 );
-      ByteBuffer byteBuffer = ByteBuffer.allocate( 256 ); // this ensures hasArray() is true
-      final CharsetEncoder encoder = Charset.forName( ListActivity.ENCODING ).newEncoder();
-      // don't stop when a goofy character is found
-      encoder.onUnmappableCharacter( CodingErrorAction.REPLACE );
-      final NumberFormat numberFormat = NumberFormat.getNumberInstance( Locale.US );
-      // no commas in the comma-separated file
-      numberFormat.setGroupingUsed( false );
-      if ( numberFormat instanceof DecimalFormat ) {
-        final DecimalFormat dc = (DecimalFormat) numberFormat;
-        dc.setMaximumFractionDigits( 16 );
-      }
-      final StringBuffer stringBuffer = new StringBuffer();
-      final FieldPosition fp = new FieldPosition(NumberFormat.INTEGER_FIELD);
-      final Date date = new Date();
-      // loop!
-      for ( cursor.moveToFirst(); ! cursor.isAfterLast(); cursor.moveToNext() ) {
-        if ( wasInterrupted() ) {
-          throw new InterruptedException( "we were interrupted" );
-        }
-        // _id,bssid,level,lat,lon,time
-        final long id = cursor.getLong(0);
-        if ( id > maxId ) {
-          maxId = id;
-        }
-        final String bssid = cursor.getString(1);
-        final long netStart = System.currentTimeMillis();
-        final Network network = dbHelper.getNetwork( bssid );
-        netMillis += System.currentTimeMillis() - netStart;
-        if ( network == null ) {
-          // weird condition, skipping
-          ListActivity.error("network not in database: " + bssid );
-          continue;
+    
+    // ids are close enough to dense that how far along the ids it is does for progress
+    final long idSpan = Math.max( 1L, dbHelper.getMaxLocationId() - fromId );
+    final CsvLineEncoder encoder = new CsvLineEncoder();
+    long lastId = fromId;
+    boolean more = true;
+    while ( more ) {
+      // v1 first, so a row the migration moves in between is in both pages rather than neither
+      final Cursor v1 = dbHelper.exportPage( true, lastId, EXPORT_PAGE );
+      final Cursor v2 = dbHelper.exportPage( false, lastId, EXPORT_PAGE );
+      try {
+        // a full page only answers for ids up to its last one, past that is the next page's
+        long bound = Long.MAX_VALUE;
+        more = false;
+        if ( v1 != null && v1.getCount() >= EXPORT_PAGE && v1.moveToLast() ) {
+          bound = v1.getLong(0);
+          more = true;
         }
-        
-        countStats.lineCount++;
-        String ssid = network.getSsid();
-        if ( ssid.indexOf( COMMA ) >= 0 ) {
-          // comma isn't a legal ssid character, but just in case
-          ssid = ssid.replaceAll( COMMA, "_" ); 
+        if ( v2.getCount() >= EXPORT_PAGE && v2.moveToLast() ) {
+          bound = Math.min( bound, v2.getLong(0) );
+          more = true;
         }
-        // ListActivity.debug("writing network: " + ssid );
         
-        // reset the buffers
-        charBuffer.clear();
-        byteBuffer.clear();
-        // fill in the line
-        try {
-          charBuffer.append( network.getBssid() );
-          charBuffer.append( COMMA );
-          // ssid = "ronan stephenss iMac";
-          charBuffer.append( ssid );
-          charBuffer.append( COMMA );
-          charBuffer.append( network.getCapabilities() );
-          charBuffer.append( COMMA );
-          date.setTime( cursor.getLong(7) );
-          singleCopyDateFormat( dateFormat, stringBuffer, charBuffer, fp, date );
-          charBuffer.append( COMMA );
-          Integer channel = network.getChannel();
-          if ( channel == null ) {
-            channel = network.getFrequency();
+        boolean hasV1 = v1 != null && v1.moveToFirst();
+        boolean hasV2 = v2.moveToFirst();
+        while ( hasV1 || hasV2 ) {
+          if ( wasInterrupted() ) {
+            throw new InterruptedException( "we were interrupted" );
+          }
+          final long v1Id = hasV1 ? v1.getLong(0) : Long.MAX_VALUE;
+          final long v2Id = hasV2 ? v2.getLong(0) : Long.MAX_VALUE;
+          final long id = Math.min( v1Id, v2Id );
+          if ( id > bound ) {
+            break;
+          }
+          if ( id > maxId ) {
+            maxId = id;
+          }
+          lastId = id;
+          
+          countStats.lineCount++;
+          countStats.byteCount += writeLine( encoder, id == v1Id ? v1 : v2 );
+          
+          if ( encoder.length() >= WRITE_BYTES ) {
+            final long writeStart = System.currentTimeMillis();
+            encoder.writeTo( fos );
+            fileWriteMillis += System.currentTimeMillis() - writeStart;
+          }
+          
+          // the same row in both, mid-move, is only written once
+          if ( id == v1Id ) {
+            hasV1 = v1.moveToNext();
+          }
+          if ( id == v2Id ) {
+            hasV2 = v2.moveToNext();
           }
-          singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, channel );
-          charBuffer.append( COMMA );
-          singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getInt(2) );
-          charBuffer.append( COMMA );
-          singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(3) );
-          charBuffer.append( COMMA );
-          singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(4) );
-          charBuffer.append( COMMA );
-          singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(5) );
-          charBuffer.append( COMMA );
-          singleCopyNumberFormat( numberFormat, stringBuffer, charBuffer, fp, cursor.getDouble(6) );
-          charBuffer.append( COMMA );
-          charBuffer.append( network.getType().name() );          
-          charBuffer.append( NEWLINE );
         }
-        catch ( BufferOverflowException ex ) {
-          ListActivity.info("buffer overflow: " + ex, ex );
-          // double the buffer
-          charBuffer = CharBuffer.allocate( charBuffer.capacity() * 2 );
-          byteBuffer = ByteBuffer.allocate( byteBuffer.capacity() * 2 );
-          // try again
-          cursor.moveToPrevious();
-          continue;
+      }
+      finally {
+        if ( v1 != null ) {
+          v1.close();
         }
-        
-        // tell the encoder to stop here and to start at the beginning
-        charBuffer.flip();
+        v2.close();
+      }
+      
+      // update UI
+      final int percentDone = (int) Math.min( 1000L, ( ( lastId - fromId ) * 1000L ) / idSpan );
+      sendPercentTimesTen( percentDone, bundle );
+    }
+    final long writeStart = System.currentTimeMillis();
+    encoder.writeTo( fos );
+    fileWriteMillis += System.currentTimeMillis() - writeStart;
+    
+    ListActivity.info("wrote file in: " + (System.currentTimeMillis() - start) + "ms. fileWriteMillis: "
+        + fileWriteMillis + " lines: " + countStats.lineCount );
+    
+    return maxId;
+  }
+  
+  /**
+   * the partitions, written in _id order as they're done, are each a gzip member, which gunzip reads as 
+   * one stream, so it's the same file the server always got
+   */
+  private long writeParallel( final OutputStream rawFos, final Bundle bundle, final CountStats countStats, 
+      final long fromId, final int workers ) throws IOException, NameNotFoundException, InterruptedException, 
+      DBException {
 
-        // do the encoding
-        encoder.reset();
-        encoder.encode( charBuffer, byteBuffer, true );
-        encoder.flush( byteBuffer );
-        // byteBuffer = encoder.encode( charBuffer );  (old way)
-        
-        // figure out where in the byteBuffer to stop
-        final int end = byteBuffer.position();
-        final int offset = byteBuffer.arrayOffset();
-        //if ( end == 0 ) {
-          // if doing the encode without giving a long-term byteBuffer (old way), the output
-          // byteBuffer position is zero, and the limit and capacity are how long to write for.
-        //  end = byteBuffer.limit();
-        //}
+    final SharedPreferences prefs = context.getSharedPreferences( ListActivity.SHARED_PREFS, 0);
+    long maxId = prefs.getLong( ListActivity.PREF_DB_MARKER, 0L );
+    
+    final long start = System.currentTimeMillis();
+    countStats.lineCount = 0;
+    countStats.byteCount = 0;
+    long fileWriteMillis = 0;
+    sendBundledMessage( Status.WRITING.ordinal(), bundle );
+    
+    // ids are close enough to dense that the id range does for a row count
+    final long lastId = dbHelper.getMaxLocationId();
+    final long idSpan = Math.max( 1L, lastId - fromId );
+    ListActivity.info( "writing " + fromId + " to " + lastId + " on " + workers + " workers" );
+    
+    final AtomicBoolean cancelled = new AtomicBoolean( false );
+    final ExecutorService executor = Executors.newFixedThreadPool( workers, new ThreadFactory() {
+      public Thread newThread( final Runnable runnable ) {
+        return new ExportThread( runnable );
+      }
+    });
+    // a partition or so ahead per worker, each waiting one is held in memory
+    final LinkedList<Future<Partition>> inFlight = new LinkedList<Future<Partition>>();
+    long nextId = fromId;
+    String header = header();
+    try {
+      while ( header != null || nextId < lastId || ! inFlight.isEmpty() ) {
+        while ( ( header != null || nextId < lastId ) && inFlight.size() <= workers ) {
+          final long toId = Math.min( lastId, nextId + PARTITION_IDS );
+          // the first one gets the header
+          inFlight.add( executor.submit( new Partition( nextId, toId, header, cancelled ) ) );
+          header = null;
+          nextId = toId;
+        }
+        if ( wasInterrupted() ) {
+          throw new InterruptedException( "we were interrupted" );
+        }
         
-        // ListActivity.info("buffer: arrayOffset: " + byteBuffer.arrayOffset() + " limit: " + byteBuffer.limit()
-        //     + " capacity: " + byteBuffer.capacity() + " pos: " + byteBuffer.position() + " end: " + end
-        //     + " result: " + result );
+        final Partition partition = getPartition( inFlight.removeFirst() );
         final long writeStart = System.currentTimeMillis();
-        fos.write(byteBuffer.array(), offset, end+offset );
+        rawFos.write( partition.gzipped );
         fileWriteMillis += System.currentTimeMillis() - writeStart;
-
-        countStats.byteCount += end;
-
+        maxId = Math.max( maxId, partition.maxId );
+        countStats.lineCount += partition.lineCount;
+        countStats.byteCount += partition.byteCount;
+        
         // update UI
-        final int percentDone = (countStats.lineCount * 1000) / total;
-        sendPercentTimesTen( percentDone, bundle );        
+        final int percentDone = (int) ( ( ( partition.toId - fromId ) * 1000L ) / idSpan );
+        sendPercentTimesTen( percentDone, bundle );
       }
     }
+    finally {
+      // on the way out early, the rest can stop
+      cancelled.set( true );
+      executor.shutdown();
+    }
     
-    ListActivity.info("wrote file in: " + (System.currentTimeMillis() - start) + "ms. fileWriteMillis: "
-        + fileWriteMillis + " netmillis: " + netMillis );
-    
+    ListActivity.info("wrote file in parallel in: " + (System.currentTimeMillis() - start) + "ms. fileWriteMillis: "
+        + fileWriteMillis + " lines: " + countStats.lineCount );
     return maxId;
   }
   
-  public static void writeFos( final OutputStream fos, final String data ) throws IOException, UnsupportedEncodingException {
-    if ( data != null ) {
-      fos.write( data.getBytes( ListActivity.ENCODING ) );
+  private static Partition getPartition( final Future<Partition> future ) 
+      throws IOException, InterruptedException, DBException {
+    try {
+      return future.get();
+    }
+    catch ( final ExecutionException ex ) {
+      final Throwable cause = ex.getCause();
+      if ( cause instanceof IOException ) {
+        throw (IOException) cause;
+      }
+      if ( cause instanceof InterruptedException ) {
+        throw (InterruptedException) cause;
+      }
+      if ( cause instanceof DBException ) {
+        throw (DBException) cause;
+      }
+      throw new RuntimeException( "export partition failed: " + cause, cause );
+    }
+  }
+  
+  /**
+   * fromId &lt; _id &lt;= toId, read on its own connection if there can be one, written as a gzip member
+   */
+  private final class Partition implements Callable<Partition> {
+    private final long fromId;
+    private final long toId;
+    private final String header;
+    private final AtomicBoolean cancelled;
+    private byte[] gzipped;
+    private long maxId = 0L;
+    private int lineCount = 0;
+    private int byteCount = 0;
+    
+    public Partition( final long fromId, final long toId, final String header, final AtomicBoolean cancelled ) {
+      this.fromId = fromId;
+      this.toId = toId;
+      this.header = header;
+      this.cancelled = cancelled;
+    }
+    
+    public Partition call() throws IOException, InterruptedException, DBException {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream( WRITE_BYTES );
+      final GZIPOutputStream gzip = new GZIPOutputStream( bytes, WRITE_BYTES );
+      Cursor cursor = null;
+      try {
+        cursor = DatabaseHelper.exportRange( ((ExportThread) Thread.currentThread()).getConnection(), fromId, toId );
+        if ( header != null ) {
+          writeFos( gzip, header );
+          byteCount += header.length();
+        }
+        final CsvLineEncoder encoder = new CsvLineEncoder();
+        while ( cursor.moveToNext() ) {
+          if ( cancelled.get() ) {
+            throw new InterruptedException( "export cancelled" );
+          }
+          maxId = Math.max( maxId, cursor.getLong(0) );
+          lineCount++;
+          byteCount += writeLine( encoder, cursor );
+          if ( encoder.length() >= WRITE_BYTES ) {
+            encoder.writeTo( gzip );
+          }
+        }
+        encoder.writeTo( gzip );
+      }
+      finally {
+        gzip.close();
+        if ( cursor != null ) {
+          cursor.close();
+        }
+      }
+      gzipped = bytes.toByteArray();
+      return this;
     }
   }
   
-  private void singleCopyNumberFormat( final NumberFormat numberFormat, final StringBuffer stringBuffer, 
-      final CharBuffer charBuffer, final FieldPosition fp, final int number ) {
-    stringBuffer.setLength( 0 );
-    numberFormat.format( number, stringBuffer, fp );
-    stringBuffer.getChars(0, stringBuffer.length(), charBuffer.array(), charBuffer.position() );
-    charBuffer.position( charBuffer.position() + stringBuffer.length() );
+  /**
+   * a thread of the parallel export's pool. it opens one read-only connection for all the partitions it
+   * runs and closes it when the pool shuts down and the thread exits.
+   */
+  private final class ExportThread extends Thread {
+    /** null when sharing the writer's */
+    private SQLiteDatabase reader;
+    private boolean triedReader = false;
+    
+    public ExportThread( final Runnable runnable ) {
+      super( runnable );
+      setName( "export-" + getName() );
+    }
+    
+    @Override
+    public void run() {
+      // the pool's threads, like the task's, shouldn't get in the way of the gui
+      Process.setThreadPriority( Process.THREAD_PRIORITY_BACKGROUND );
+      try {
+        super.run();
+      }
+      finally {
+        if ( reader != null ) {
+          reader.close();
+        }
+      }
+    }
+    
+    public SQLiteDatabase getConnection() throws DBException {
+      if ( ! triedReader ) {
+        reader = dbHelper.openReader();
+        triedReader = true;
+      }
+      return reader != null ? reader : dbHelper.getDB();
+    }
+  }
+  
+  /**
+   * name, version, header
+   */
+  private String header() throws NameNotFoundException {
+    final PackageManager pm = context.getPackageManager();
+    final PackageInfo pi = pm.getPackageInfo(context.getPackageName(), 0);
+    
+    return "WigleWifi-1.4"
+        + ",appRelease=" + pi.versionName
+        + ",model=" + android.os.Build.MODEL
+        + ",release=" + android.os.Build.VERSION.RELEASE
+        + ",device=" + android.os.Build.DEVICE
+        + ",display=" + android.os.Build.DISPLAY
+        + ",board=" + android.os.Build.BOARD
+        + ",brand=" + android.os.Build.BRAND
+        + "\n" 
+        + "MAC,SSID,AuthMode,FirstSeen,Channel,RSSI,CurrentLatitude,CurrentLongitude,AltitudeMeters,AccuracyMeters,Type\n";
+  }
+  
+  /**
+   * @param cursor on an export row: _id,bssid,level,lat,lon,altitude,accuracy,time,ssid,capabilities,
+   *  frequency,type
+   * @return bytes written
+   */
+  private static int writeLine( final CsvLineEncoder encoder, final Cursor cursor ) {
+    // the network's columns came with the location, the same as a Network would have them
+    final int frequency = cursor.getInt(10);
+    final Integer channel = Network.getChannel( frequency );
+    return encoder.line( cursor.getString(1).toLowerCase(), cursor.getString(8), cursor.getString(9), 
+        cursor.getLong(7), channel == null ? frequency : channel, cursor.getInt(2), cursor.getDouble(3), 
+        cursor.getDouble(4), cursor.getDouble(5), cursor.getDouble(6), 
+        NetworkType.typeForCode( cursor.getString(11) ).name() );
   }
   
-  private void singleCopyNumberFormat( final NumberFormat numberFormat, final StringBuffer stringBuffer, 
-      final CharBuffer charBuffer, final FieldPosition fp, final double number ) {
-    stringBuffer.setLength( 0 );
-    numberFormat.format( number, stringBuffer, fp );
-    stringBuffer.getChars(0, stringBuffer.length(), charBuffer.array(), charBuffer.position() );
-    charBuffer.position( charBuffer.position() + stringBuffer.length() );
+  public static void writeFos( final OutputStream fos, final String data ) throws IOException, UnsupportedEncodingException {
+    if ( data != null ) {
+      fos.write( data.getBytes( ListActivity.ENCODING ) );
+    }
   }
   
-  private void singleCopyDateFormat( final DateFormat dateFormat, final StringBuffer stringBuffer, 
-      final CharBuffer charBuffer, final FieldPosition fp, final Date date ) {
-    stringBuffer.setLength( 0 );
-    dateFormat.format( date, stringBuffer, fp );
-    stringBuffer.getChars(0, stringBuffer.length(), charBuffer.array(), charBuffer.position() );
-    charBuffer.position( charBuffer.position() + stringBuffer.length() );
+  /**
+   * writes to both, closes both
+   */
+  private static final class TeeOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final OutputStream tee;
+    
+    public TeeOutputStream( final OutputStream out, final OutputStream tee ) {
+      this.out = out;
+      this.tee = tee;
+    }
+    
+    @Override
+    public void write( final int b ) throws IOException {
+      out.write( b );
+      tee.write( b );
+    }
+    
+    @Override
+    public void write( final byte[] buffer, final int offset, final int count ) throws IOException {
+      out.write( buffer, offset, count );
+      tee.write( buffer, offset, count );
+    }
+    
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+      tee.flush();
+    }
+    
+    @Override
+    public void close() throws IOException {
+      try {
+        out.close();
+      }
+      finally {
+        tee.close();
+      }
+    }
   }
-   
+  
 }
@@ -1,6 +1,7 @@
 package net.wigle.wigleandroid.background;
 
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -35,6 +36,8 @@ final class HttpFileUploader {
   public static final String LINE_END = "\r\n";
   public static final String TWO_HYPHENS = "--";
   public static final String BOUNDARY = "*****";  
+  /** multipart form data necesssary after file data */
+  private static final String FORM_TRAILER = LINE_END + TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END;
   
   /** don't allow construction */
   private HttpFileUploader(){
@@ -203,20 +206,7 @@ final class HttpFileUploader {
       
       WritableByteChannel wbc = Channels.newChannel( connOutputStream );
       
-      StringBuilder header = new StringBuilder( 400 ); // find a better guess. it was 281 for me in the field 2010/05/16 -hck
-      for ( Map.Entry<String, String> entry : params.entrySet() ) {
-        header.append( TWO_HYPHENS ).append( BOUNDARY ).append( LINE_END );
-        header.append( "Content-Disposition: form-data; name=\""+ entry.getKey() + "\"" + LINE_END );
-        header.append( LINE_END );
-        header.append( entry.getValue() );
-        header.append( LINE_END );
-      }
-      
-      header.append( TWO_HYPHENS + BOUNDARY + LINE_END );
-      header.append( "Content-Disposition: form-data; name=\"" + fileParamName 
-                     + "\";filename=\"" + filename +"\"" + LINE_END );
-      header.append( "Content-Type: application/octet_stream" + LINE_END );
-      header.append( LINE_END );
+      final StringBuilder header = formHeader( filename, fileParamName, params );
 
       ListActivity.info( "About to write headers, length: " + header.length() );
       CharsetEncoder enc = Charset.forName( ENCODING ).newEncoder();
@@ -251,10 +241,7 @@ final class HttpFileUploader {
       ListActivity.info( "done. transferred " + byteswritten + " of " + filesize );
 
       // send multipart form data necesssary after file data...
-      header.setLength( 0 ); // clear()
-      header.append(LINE_END);
-      header.append(TWO_HYPHENS + BOUNDARY + TWO_HYPHENS + LINE_END);
-      writeString( wbc, header.toString(), enc, cbuff, bbuff );
+      writeString( wbc, FORM_TRAILER, enc, cbuff, bbuff );
 
       // close streams
       ListActivity.info( "File is written" );
@@ -262,20 +249,7 @@ final class HttpFileUploader {
       fc.close();
       fileInputStream.close();
       
-      int responseCode = conn.getResponseCode();
-      ListActivity.info( "connection response code: " + responseCode );
-
-      // read the response
-      final InputStream is = getInputStream( conn );
-      int ch;
-      final StringBuilder b = new StringBuilder();
-      final byte[] buffer = new byte[1024];
-      
-      while( ( ch = is.read( buffer ) ) != -1 ) {
-        b.append( new String( buffer, 0, ch ) );
-      }
-      retval = b.toString();
-      // ListActivity.info( "Response: " + retval );
+      retval = readResponse( conn );
     }
     finally {
       if ( conn != null ) {
@@ -287,6 +261,147 @@ final class HttpFileUploader {
     return retval;
   }
   
+  /**
+   * start an upload whose file is written as it's made, straight down the chunked connection, instead of
+   * from a finished file. the form fields and the file part's header are sent before this returns.
+   *
+   * @param urlString the url to POST the file to
+   * @param filename the filename to use for the post
+   * @param fileParamName the HTML form field name for the file
+   * @param params form data fields (key and value)
+   * @param res the app resources (needed for looking up SSL cert)
+   */
+  public static StreamingUpload startUpload( final String urlString, final String filename, 
+      final String fileParamName, final Map<String,String> params, final Resources res ) throws IOException {
+    
+    final HttpURLConnection conn = connect( urlString, res, true );
+    if ( conn == null ) {
+      throw new IOException( "could not connect to: " + urlString );
+    }
+    return startUpload( conn, filename, fileParamName, params );
+  }
+  
+  /**
+   * the same on a connection that's already open, a multipart/form-data POST with chunked streaming,
+   * for a stand-in server or anything else connect() doesn't fit
+   */
+  static StreamingUpload startUpload( final HttpURLConnection conn, final String filename, 
+      final String fileParamName, final Map<String,String> params ) throws IOException {
+    
+    try {
+      final OutputStream out = conn.getOutputStream();
+      out.write( formHeader( filename, fileParamName, params ).toString().getBytes( ENCODING ) );
+      return new StreamingUpload( conn, out );
+    }
+    catch ( final IOException ex ) {
+      conn.disconnect();
+      throw ex;
+    }
+  }
+  
+  /**
+   * an upload in progress. write the file to getOutputStream, then finish, or abort on the way out early
+   */
+  static final class StreamingUpload {
+    private final HttpURLConnection conn;
+    private final OutputStream out;
+    private long bytes = 0L;
+    
+    private StreamingUpload( final HttpURLConnection conn, final OutputStream connOut ) {
+      this.conn = conn;
+      this.out = new FilterOutputStream( connOut ) {
+        @Override
+        public void write( final byte[] buffer, final int offset, final int count ) throws IOException {
+          // FilterOutputStream would do it a byte at a time
+          connOut.write( buffer, offset, count );
+          bytes += count;
+        }
+        
+        @Override
+        public void write( final int b ) throws IOException {
+          connOut.write( b );
+          bytes++;
+        }
+        
+        @Override
+        public void close() throws IOException {
+          // the form isn't done yet, that's finish's
+          connOut.flush();
+        }
+      };
+    }
+    
+    /**
+     * @return where the file goes, closing it doesn't end the upload
+     */
+    public OutputStream getOutputStream() {
+      return out;
+    }
+    
+    /**
+     * end the form and wait for the server
+     * @return the response
+     */
+    public String finish() throws IOException {
+      try {
+        out.flush();
+        final OutputStream connOut = conn.getOutputStream();
+        connOut.write( FORM_TRAILER.getBytes( ENCODING ) );
+        connOut.close();
+        ListActivity.info( "streamed file, bytes: " + bytes );
+        return readResponse( conn );
+      }
+      finally {
+        ListActivity.info( "conn disconnect" );
+        conn.disconnect();
+      }
+    }
+    
+    public void abort() {
+      conn.disconnect();
+    }
+  }
+  
+  /**
+   * the form fields, then the file part's header, up to where the file goes
+   */
+  private static StringBuilder formHeader( final String filename, final String fileParamName, 
+      final Map<String,String> params ) {
+    
+    final StringBuilder header = new StringBuilder( 400 ); // find a better guess. it was 281 for me in the field 2010/05/16 -hck
+    for ( Map.Entry<String, String> entry : params.entrySet() ) {
+      header.append( TWO_HYPHENS ).append( BOUNDARY ).append( LINE_END );
+      header.append( "Content-Disposition: form-data; name=\""+ entry.getKey() + "\"" + LINE_END );
+      header.append( LINE_END );
+      header.append( entry.getValue() );
+      header.append( LINE_END );
+    }
+    
+    header.append( TWO_HYPHENS + BOUNDARY + LINE_END );
+    header.append( "Content-Disposition: form-data; name=\"" + fileParamName 
+                   + "\";filename=\"" + filename +"\"" + LINE_END );
+    header.append( "Content-Type: application/octet_stream" + LINE_END );
+    header.append( LINE_END );
+    return header;
+  }
+  
+  private static String readResponse( final HttpURLConnection conn ) throws IOException {
+    int responseCode = conn.getResponseCode();
+    ListActivity.info( "connection response code: " + responseCode );
+
+    // read the response
+    final InputStream is = getInputStream( conn );
+    int ch;
+    final StringBuilder b = new StringBuilder();
+    final byte[] buffer = new byte[1024];
+    
+    while( ( ch = is.read( buffer ) ) != -1 ) {
+      b.append( new String( buffer, 0, ch ) );
+    }
+    // ListActivity.info( "Response: " + b );
+    return b.toString();
+  }
+  
   /**
    * get the InputStream, gunzip'ing if needed
    */
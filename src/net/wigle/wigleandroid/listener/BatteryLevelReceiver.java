@@ -1,5 +1,7 @@
 package net.wigle.wigleandroid.listener;
 
+import net.wigle.wigleandroid.DatabaseHelper;
+import net.wigle.wigleandroid.ListActivity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -10,6 +12,7 @@ import android.content.Intent;
 public final class BatteryLevelReceiver extends BroadcastReceiver {
   private int batteryLevel = -1;
   private int batteryStatus = -1;
+  private boolean plugged = false;
   
   public BatteryLevelReceiver() {
   }
@@ -24,6 +27,13 @@ public final class BatteryLevelReceiver extends BroadcastReceiver {
       level = (rawlevel * 100) / scale;
     }
     batteryLevel = level;
+    
+    // any power source lets the db writer batch harder
+    plugged = intent.getIntExtra("plugged", 0) > 0;
+    final DatabaseHelper dbHelper = ListActivity.lameStatic.dbHelper;
+    if ( dbHelper != null ) {
+      dbHelper.getCommitScheduler().setPluggedIn( plugged );
+    }
   }
   
   public int getBatteryLevel() {
@@ -33,4 +43,8 @@ public final class BatteryLevelReceiver extends BroadcastReceiver {
   public int getBatteryStatus() {
     return batteryStatus;
   }
+  
+  public boolean isPlugged() {
+    return plugged;
+  }
 }
@@ -2,6 +2,7 @@ package net.wigle.wigleandroid.listener;
 
 import static android.location.LocationManager.GPS_PROVIDER;
 import static android.location.LocationManager.NETWORK_PROVIDER;
+import net.wigle.wigleandroid.DatabaseHelper;
 import net.wigle.wigleandroid.ListActivity;
 import net.wigle.wigleandroid.R;
 import android.content.Context;
@@ -64,6 +65,7 @@ public class GPSListener implements Listener, LocationListener {
   @Override
   public void onLocationChanged( final Location newLocation ) {
     // ListActivity.info("GPS onLocationChanged: " + newLocation);
+    addToTrack( newLocation );
     updateLocationData( newLocation );
         
     if ( mapLocationListener != null ) {
@@ -98,6 +100,23 @@ public class GPSListener implements Listener, LocationListener {
     }
   }
 
+  /** 
+   * record every sane gps fix for placing observations seen without one, even fixes with too few
+   * sats to be used as the location, they're still better than a straight line.
+   */
+  private void addToTrack( final Location newLocation ) {
+    final DatabaseHelper dbHelper = ListActivity.lameStatic.dbHelper;
+    if ( dbHelper == null || newLocation == null || ! GPS_PROVIDER.equals( newLocation.getProvider() )
+        || horribleGps( newLocation ) ) {
+      return;
+    }
+    // receive time, not gps time, to line up with when observations were seen
+    dbHelper.getGpsTrack().add( System.currentTimeMillis(), newLocation.getLatitude(), newLocation.getLongitude(),
+        newLocation.hasAccuracy() ? newLocation.getAccuracy() : 0f,
+        newLocation.hasSpeed() ? newLocation.getSpeed() : Float.NaN,
+        newLocation.hasBearing() ? newLocation.getBearing() : Float.NaN );
+  }
+
   /** newLocation can be null */
   private void updateLocationData( final Location newLocation ) {
     final LocationManager locationManager = (LocationManager) listActivity.getSystemService(Context.LOCATION_SERVICE);
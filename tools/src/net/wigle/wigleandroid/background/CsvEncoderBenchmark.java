@@ -0,0 +1,242 @@
+package net.wigle.wigleandroid.background;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * CsvLineEncoder against the NumberFormat/SimpleDateFormat/CharsetEncoder lines the export used to write:
+ * checks they come out byte for byte the same, then times both: CsvEncoderBenchmark [rows] [rounds]
+ *
+ * kept out of src so it isn't built into the apk. it compares against the java.text of whatever runs it,
+ * so a desktop jvm only speaks for the jdk's formatters. for android's icu ones run it on a device or
+ * emulator, e.g. built into a throwaway instrumentation apk alongside src.
+ */
+public final class CsvEncoderBenchmark {
+  private static final String[] SSIDS = new String[]{ "linksys", "NETGEAR42", "Bob's, Place", "caf\u00e9 wifi",
+    "\u0425\u0430\u0442\u0430", "\ud83d\ude00 party", "", "attwifi", "xfinitywifi", "2WIRE123" };
+  private static final String[] CAPABILITIES = new String[]{ "[WPA2-PSK-CCMP][ESS]", "[WEP][ESS]", "[ESS]",
+    "[WPA-PSK-TKIP+CCMP][WPA2-PSK-TKIP+CCMP][WPS][ESS]", "GSM;310260" };
+  private static final int[] FREQUENCIES = new int[]{ 2412, 2437, 2462, 5180, 5745, 0, 1900 };
+  private static final String[] TYPES = new String[]{ "WIFI", "GSM", "CDMA" };
+
+  private CsvEncoderBenchmark() {
+  }
+
+  public static void main( final String[] args ) throws Exception {
+    final int rows = args.length > 0 ? Integer.parseInt( args[0] ) : 200000;
+    final int rounds = args.length > 1 ? Integer.parseInt( args[1] ) : 5;
+    final Row[] data = rows( rows, new Random( 1 ) );
+
+    final byte[] legacy = new Legacy().write( data );
+    final byte[] encoded = encode( data );
+    if ( ! Arrays.equals( legacy, encoded ) ) {
+      throw new IllegalStateException( "output differs at byte " + firstDifference( legacy, encoded ) );
+    }
+    System.out.println( "identical: " + legacy.length + " bytes, " + rows + " rows" );
+
+    for ( int round = 0; round < rounds; round++ ) {
+      long start = System.nanoTime();
+      new Legacy().write( data );
+      final long legacyNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      encode( data );
+      final long encoderNanos = System.nanoTime() - start;
+      System.out.println( "round " + round + ": legacy " + ( legacyNanos / 1000000L ) + "ms, encoder "
+          + ( encoderNanos / 1000000L ) + "ms, " + ( legacyNanos / Math.max( 1L, encoderNanos ) ) + "x" );
+    }
+  }
+
+  private static final class Row {
+    String bssid;
+    String ssid;
+    String capabilities;
+    long time;
+    int channel;
+    int level;
+    double lat;
+    double lon;
+    double altitude;
+    double accuracy;
+    String type;
+  }
+
+  /**
+   * about what the db gives back: 1e7 scaled positions, tenths of a meter, whole meter accuracies, a
+   * few seconds apart, plus some that need DecimalFormat
+   */
+  private static Row[] rows( final int count, final Random random ) {
+    final Row[] rows = new Row[count];
+    long time = 1293840000000L;
+    for ( int i = 0; i < count; i++ ) {
+      final Row row = new Row();
+      row.bssid = String.format( "%02x:%02x:%02x:%02x:%02x:%02x", random.nextInt( 256 ), random.nextInt( 256 ),
+          random.nextInt( 256 ), random.nextInt( 256 ), random.nextInt( 256 ), random.nextInt( 256 ) );
+      row.ssid = SSIDS[random.nextInt( SSIDS.length )];
+      row.capabilities = CAPABILITIES[random.nextInt( CAPABILITIES.length )];
+      time += random.nextInt( 5000 );
+      row.time = time;
+      row.channel = FREQUENCIES[random.nextInt( FREQUENCIES.length )];
+      row.level = -30 - random.nextInt( 70 );
+      row.lat = ( random.nextInt( 1800000000 ) - 900000000 ) / 10000000.0;
+      row.lon = ( (long) random.nextInt( Integer.MAX_VALUE ) * 2L - 1800000000L ) / 10000000.0;
+      row.altitude = ( random.nextInt( 40000 ) - 2000 ) / 10.0;
+      row.accuracy = random.nextInt( 100 );
+      row.type = TYPES[random.nextInt( TYPES.length )];
+      switch ( random.nextInt( 50 ) ) {
+        case 0:
+          row.lat = random.nextDouble();
+          break;
+        case 1:
+          row.lon = -random.nextDouble() * 1e-9;
+          break;
+        case 2:
+          row.altitude = -0d;
+          break;
+        case 3:
+          row.altitude = random.nextDouble() * 1e17;
+          break;
+        default:
+      }
+      rows[i] = row;
+    }
+    return rows;
+  }
+
+  private static byte[] encode( final Row[] rows ) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final CsvLineEncoder encoder = new CsvLineEncoder();
+    for ( final Row row : rows ) {
+      encoder.line( row.bssid, row.ssid, row.capabilities, row.time, row.channel, row.level, row.lat, row.lon,
+          row.altitude, row.accuracy, row.type );
+      if ( encoder.length() >= 8192 ) {
+        encoder.writeTo( out );
+      }
+    }
+    encoder.writeTo( out );
+    return out.toByteArray();
+  }
+
+  private static int firstDifference( final byte[] a, final byte[] b ) {
+    final int count = Math.min( a.length, b.length );
+    for ( int i = 0; i < count; i++ ) {
+      if ( a[i] != b[i] ) {
+        return i;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * the export's line writing before CsvLineEncoder
+   */
+  private static final class Legacy {
+    private static final String COMMA = ",";
+    private static final String NEWLINE = "\n";
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
+    private final NumberFormat numberFormat = NumberFormat.getNumberInstance( Locale.US );
+    private final StringBuffer stringBuffer = new StringBuffer();
+    private final FieldPosition fp = new FieldPosition( NumberFormat.INTEGER_FIELD );
+    private final Date date = new Date();
+
+    public Legacy() {
+      numberFormat.setGroupingUsed( false );
+      if ( numberFormat instanceof DecimalFormat ) {
+        ((DecimalFormat) numberFormat).setMaximumFractionDigits( 16 );
+      }
+    }
+
+    public byte[] write( final Row[] rows ) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      CharBuffer charBuffer = CharBuffer.allocate( 256 );
+      ByteBuffer byteBuffer = ByteBuffer.allocate( 256 );
+      final CharsetEncoder encoder = Charset.forName( "ISO-8859-1" ).newEncoder();
+      encoder.onUnmappableCharacter( CodingErrorAction.REPLACE );
+      for ( int i = 0; i < rows.length; i++ ) {
+        final Row row = rows[i];
+        String ssid = row.ssid;
+        if ( ssid.indexOf( COMMA ) >= 0 ) {
+          ssid = ssid.replaceAll( COMMA, "_" );
+        }
+        charBuffer.clear();
+        byteBuffer.clear();
+        try {
+          charBuffer.append( row.bssid );
+          charBuffer.append( COMMA );
+          charBuffer.append( ssid );
+          charBuffer.append( COMMA );
+          charBuffer.append( row.capabilities );
+          charBuffer.append( COMMA );
+          date.setTime( row.time );
+          format( dateFormat, charBuffer, date );
+          charBuffer.append( COMMA );
+          format( charBuffer, row.channel );
+          charBuffer.append( COMMA );
+          format( charBuffer, row.level );
+          charBuffer.append( COMMA );
+          format( charBuffer, row.lat );
+          charBuffer.append( COMMA );
+          format( charBuffer, row.lon );
+          charBuffer.append( COMMA );
+          format( charBuffer, row.altitude );
+          charBuffer.append( COMMA );
+          format( charBuffer, row.accuracy );
+          charBuffer.append( COMMA );
+          charBuffer.append( row.type );
+          charBuffer.append( NEWLINE );
+        }
+        catch ( BufferOverflowException ex ) {
+          charBuffer = CharBuffer.allocate( charBuffer.capacity() * 2 );
+          byteBuffer = ByteBuffer.allocate( byteBuffer.capacity() * 2 );
+          i--;
+          continue;
+        }
+        charBuffer.flip();
+        encoder.reset();
+        encoder.encode( charBuffer, byteBuffer, true );
+        encoder.flush( byteBuffer );
+        out.write( byteBuffer.array(), byteBuffer.arrayOffset(), byteBuffer.position() );
+      }
+      return out.toByteArray();
+    }
+
+    private void format( final CharBuffer charBuffer, final long number ) {
+      stringBuffer.setLength( 0 );
+      numberFormat.format( number, stringBuffer, fp );
+      copy( charBuffer );
+    }
+
+    private void format( final CharBuffer charBuffer, final double number ) {
+      stringBuffer.setLength( 0 );
+      numberFormat.format( number, stringBuffer, fp );
+      copy( charBuffer );
+    }
+
+    private void format( final DateFormat format, final CharBuffer charBuffer, final Date date ) {
+      stringBuffer.setLength( 0 );
+      format.format( date, stringBuffer, fp );
+      copy( charBuffer );
+    }
+
+    private void copy( final CharBuffer charBuffer ) {
+      if ( charBuffer.remaining() < stringBuffer.length() ) {
+        throw new BufferOverflowException();
+      }
+      stringBuffer.getChars( 0, stringBuffer.length(), charBuffer.array(), charBuffer.position() );
+      charBuffer.position( charBuffer.position() + stringBuffer.length() );
+    }
+  }
+}